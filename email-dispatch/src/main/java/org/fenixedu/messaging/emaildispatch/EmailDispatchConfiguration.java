@@ -25,6 +25,98 @@ public class EmailDispatchConfiguration {
                 description = "If true, To and Cc recipients will be treated as Bcc recipients. The dispatcher does not guarantee the visibility of these types of recipients in sent emails. This flag exists for the cases where it may be preferable to guarantee that none are visible.")
         public Boolean recipientsAsBccs();
 
+        @ConfigurationProperty(key = "mailSender.pool.size", defaultValue = "4",
+                description = "Maximum number of simultaneously connected SMTP sessions kept for each relay.")
+        public Integer mailSenderPoolSize();
+
+        @ConfigurationProperty(key = "mailSender.pool.priority.size", defaultValue = "1",
+                description = "Number of SMTP sessions for each relay reserved for high priority messages, in addition to mailSender.pool.size.")
+        public Integer mailSenderPoolPrioritySize();
+
+        @ConfigurationProperty(key = "mailSender.pool.idle.seconds", defaultValue = "60",
+                description = "Time after which an unused SMTP session is closed.")
+        public Integer mailSenderPoolIdleSeconds();
+
+        @ConfigurationProperty(key = "mailSender.pool.check.seconds", defaultValue = "10",
+                description = "Time after which an unused SMTP session is checked for liveness before being reused.")
+        public Integer mailSenderPoolCheckSeconds();
+
+        @ConfigurationProperty(key = "mailSender.pool.max.messages", defaultValue = "100",
+                description = "Number of messages after which an SMTP session is closed and replaced. Zero means unlimited.")
+        public Integer mailSenderPoolMaxMessages();
+
+        @ConfigurationProperty(key = "mailSender.delivery.threads", defaultValue = "8",
+                description = "Number of workers delivering messages in parallel. Concurrency towards each relay is further bounded by mailSender.pool.size.")
+        public Integer mailSenderDeliveryThreads();
+
+        @ConfigurationProperty(key = "mailSender.delivery.priority.threads", defaultValue = "2",
+                description = "Number of workers reserved for delivering high priority messages, in addition to mailSender.delivery.threads.")
+        public Integer mailSenderDeliveryPriorityThreads();
+
+        @ConfigurationProperty(key = "mailSender.dispatch.batch.size", defaultValue = "100",
+                description = "Number of handlers created in each transaction while dispatching a message.")
+        public Integer mailSenderDispatchBatchSize();
+
+        @ConfigurationProperty(key = "mailSender.render.cache.megabytes", defaultValue = "64",
+                description = "Memory used to keep rendered messages while their handlers are being delivered.")
+        public Integer mailSenderRenderCacheMegabytes();
+
+        @ConfigurationProperty(key = "mailSender.spool.dir",
+                description = "Local directory where rendered messages are written when dispatched and read from when delivered. If unset, rendered messages are only kept in memory.")
+        public String mailSenderSpoolDir();
+
+        @ConfigurationProperty(key = "mailSender.rate.messages", defaultValue = "0",
+                description = "Maximum number of messages sent per second. Lowered automatically while the relay is throttling delivery. Zero means unlimited.")
+        public Double mailSenderRateMessages();
+
+        @ConfigurationProperty(key = "mailSender.rate.recipients", defaultValue = "0",
+                description = "Maximum number of recipients sent to per second. Lowered automatically while the relay is throttling delivery. Zero means unlimited.")
+        public Double mailSenderRateRecipients();
+
+        @ConfigurationProperty(key = "mailSender.rate.sender.messages", defaultValue = "0",
+                description = "Maximum number of messages sent per second on behalf of each sender. Zero means unlimited.")
+        public Double mailSenderRateSenderMessages();
+
+        @ConfigurationProperty(key = "mailSender.rate.priority.share", defaultValue = "0.1",
+                description = "Fraction of the global message and recipient rates reserved for high priority messages, which bulk messages never use. Zero means high priority messages share the rates with bulk ones.")
+        public Double mailSenderRatePriorityShare();
+
+        @ConfigurationProperty(key = "mailSender.retry.max.attempts", defaultValue = "5",
+                description = "Number of times delivery to an address is attempted before it is counted as failed.")
+        public Integer mailSenderRetryMaxAttempts();
+
+        @ConfigurationProperty(key = "mailSender.retry.delay.seconds", defaultValue = "60",
+                description = "Delay before the first retry of a failed delivery. It doubles with each further attempt, with some random jitter.")
+        public Integer mailSenderRetryDelaySeconds();
+
+        @ConfigurationProperty(key = "mailSender.retry.max.delay.seconds", defaultValue = "3600",
+                description = "Maximum delay between retries of a failed delivery.")
+        public Integer mailSenderRetryMaxDelaySeconds();
+
+        @ConfigurationProperty(key = "mailSender.lease.node",
+                description = "Name identifying this node when leasing reports for delivery. Defaults to the process and host names.")
+        public String mailSenderLeaseNode();
+
+        @ConfigurationProperty(key = "mailSender.lease.seconds", defaultValue = "120",
+                description = "Time after which the reports leased by a node that stopped renewing its leases may be delivered by other nodes.")
+        public Integer mailSenderLeaseSeconds();
+
+        @ConfigurationProperty(key = "mailSender.lease.skew.seconds", defaultValue = "30",
+                description = "Largest difference expected between the clocks of the nodes. A lease held by another node is only taken over once it expired by more than this margin.")
+        public Integer mailSenderLeaseSkewSeconds();
+
+        @ConfigurationProperty(key = "mailSender.lease.max.reports", defaultValue = "0",
+                description = "Maximum number of reports leased by each node at a time, so that several nodes share the email queue. Zero means unlimited.")
+        public Integer mailSenderLeaseMaxReports();
+
+        @ConfigurationProperty(key = "mailSender.suppression", defaultValue = "true",
+                description = "If true, addresses blacklisted as invalid or that failed too many deliveries are skipped when dispatching messages, and counted as suppressed.")
+        public Boolean mailSenderSuppression();
+
+        @ConfigurationProperty(key = "mailSender.suppression.max.failures", defaultValue = "3",
+                description = "Number of failed deliveries to an address that are tolerated before it is suppressed.")
+        public Integer mailSenderSuppressionMaxFailures();
+
     }
 
     public static ConfigurationProperties getConfiguration() {
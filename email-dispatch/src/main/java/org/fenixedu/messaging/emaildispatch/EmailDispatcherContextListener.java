@@ -8,7 +8,13 @@ import org.fenixedu.messaging.core.dispatch.MessageDispatcher;
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessageDispatchReport;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryLeases;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryMetrics;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDeliveryEngine;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDispatchDaemon;
+import org.fenixedu.messaging.emaildispatch.domain.EmailDispatchJob;
 import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.transport.SmtpTransportPool;
 
 @WebListener
 public class EmailDispatcherContextListener implements ServletContextListener {
@@ -17,15 +23,27 @@ public class EmailDispatcherContextListener implements ServletContextListener {
         public MessageDispatchReport dispatch(Message message) {
             return LocalEmailMessageDispatchReport.dispatch(message);
         }
+
+        @Override
+        public boolean managesTransactions() {
+            return true;
+        }
     }
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
         MessagingSystem.setMessageDispatcher(new LocalEmailMessageDispatcher());
+        DeliveryMetrics.registerGauges();
+        EmailDispatchDaemon.start();
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
         MessagingSystem.setMessageDispatcher(null);
+        EmailDispatchDaemon.shutdown();
+        EmailDispatchJob.shutdown();
+        EmailDeliveryEngine.shutdown();
+        DeliveryLeases.shutdown();
+        SmtpTransportPool.shutdownAll();
     }
 }
@@ -0,0 +1,185 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Leases reports to this node while their handlers are being delivered, so that several nodes can drain the email queue
+ * without sending the same handlers. Leases are renewed by a heartbeat while held. When a node dies, its leases expire and its
+ * reports are picked up by the next node to run the email task.
+ *
+ * Leases are kept per node, so different deliveries of the same report within this node share the lease, which is only
+ * released once the last of them ends. Lease transactions run on a thread of their own, independent of the callers'.
+ *
+ * Leases have two limits. They cover whole reports, so the handlers of a single large report are all delivered by the one
+ * node holding it, and only separate reports are spread over nodes. Expiry is also judged by the clock of the node looking at
+ * the lease, so a lease held by another node is only taken over once it expired by more than the configured clock skew.
+ * Should the clocks differ by more than that, or a node stall for longer than the lease, two nodes may deliver the same
+ * report at once.
+ */
+public class DeliveryLeases {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryLeases.class);
+
+    private static DeliveryLeases instance = null;
+
+    private final String node;
+    private final long leaseMillis, skewMillis;
+    private final int maxReports;
+    private final Map<LocalEmailMessageDispatchReport, Integer> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    protected DeliveryLeases(String node, int leaseSeconds, int skewSeconds, int maxReports) {
+        this.node = node;
+        this.leaseMillis = Math.max(1, leaseSeconds) * 1000L;
+        this.skewMillis = Math.max(0, skewSeconds) * 1000L;
+        this.maxReports = maxReports;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("email-delivery-leases").setDaemon(true).build());
+        long heartbeat = Math.max(1, leaseMillis / 3);
+        this.executor.scheduleWithFixedDelay(this::renew, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized DeliveryLeases getInstance() {
+        if (instance == null) {
+            ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+            String node = conf.mailSenderLeaseNode();
+            if (Strings.isNullOrEmpty(node)) {
+                node = ManagementFactory.getRuntimeMXBean().getName();
+            }
+            instance = new DeliveryLeases(node, conf.mailSenderLeaseSeconds(), conf.mailSenderLeaseSkewSeconds(),
+                    conf.mailSenderLeaseMaxReports());
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Leases as many of the given reports as possible, in the given order, up to the maximum number of reports held by a node.
+     *
+     * @return the reports leased, which must each be released once delivered
+     */
+    public List<LocalEmailMessageDispatchReport> acquire(Collection<LocalEmailMessageDispatchReport> reports) {
+        try {
+            return executor.submit(() -> lease(reports)).get();
+        } catch (ExecutionException e) {
+            logger.error("Error leasing reports for delivery", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new ArrayList<>();
+    }
+
+    public void release(LocalEmailMessageDispatchReport report) {
+        if (held.computeIfPresent(report, (r, count) -> count > 1 ? count - 1 : null) == null) {
+            executor.execute(() -> {
+                try {
+                    unlease(report);
+                } catch (RuntimeException e) {
+                    logger.warn("Error releasing lease of report {}, it will expire", report.getExternalId(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Claims or renews the dispatch of the given report for this node, for as long as a lease lasts. Unlike leases, claims are
+     * not renewed by the heartbeat, but by the dispatch itself. Must be called within a write transaction.
+     *
+     * @return whether this node holds the claim
+     */
+    public boolean claimDispatch(LocalEmailMessageDispatchReport report) {
+        return report.claimDispatch(node, new DateTime().plus(leaseMillis), skewMillis);
+    }
+
+    private List<LocalEmailMessageDispatchReport> lease(Collection<LocalEmailMessageDispatchReport> reports) {
+        List<LocalEmailMessageDispatchReport> leased = new ArrayList<>();
+        List<LocalEmailMessageDispatchReport> candidates = new ArrayList<>();
+        for (LocalEmailMessageDispatchReport report : reports) {
+            if (held.computeIfPresent(report, (r, count) -> count + 1) != null) {
+                leased.add(report);
+            } else if (maxReports <= 0 || held.size() + candidates.size() < maxReports) {
+                candidates.add(report);
+            }
+        }
+        for (LocalEmailMessageDispatchReport report : leaseAll(candidates, new DateTime().plus(leaseMillis))) {
+            held.merge(report, 1, Integer::sum);
+            leased.add(report);
+        }
+        return leased;
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private List<LocalEmailMessageDispatchReport> leaseAll(List<LocalEmailMessageDispatchReport> reports, DateTime expiry) {
+        List<LocalEmailMessageDispatchReport> leased = new ArrayList<>();
+        for (LocalEmailMessageDispatchReport report : reports) {
+            if (report.lease(node, expiry, skewMillis)) {
+                leased.add(report);
+            }
+        }
+        return leased;
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private void unlease(LocalEmailMessageDispatchReport report) {
+        if (!held.containsKey(report)) {
+            report.releaseLease(node);
+        }
+    }
+
+    // The heartbeat, which drops the leases found to be taken over by another node
+    void renew() {
+        if (held.isEmpty()) {
+            return;
+        }
+        try {
+            renew(new DateTime().plus(leaseMillis)).forEach(report -> {
+                logger.warn("Lost lease of report {} to another node", report.getExternalId());
+                held.remove(report);
+            });
+        } catch (RuntimeException e) {
+            logger.error("Error renewing leases", e);
+        }
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private List<LocalEmailMessageDispatchReport> renew(DateTime expiry) {
+        List<LocalEmailMessageDispatchReport> lost = new ArrayList<>();
+        for (LocalEmailMessageDispatchReport report : held.keySet()) {
+            if (!report.lease(node, expiry, skewMillis)) {
+                lost.add(report);
+            }
+        }
+        return lost;
+    }
+}
@@ -0,0 +1,44 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics.Counter;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics.Timer;
+
+/**
+ * Timers of each stage of email dispatch and delivery, counters of the outcome of each recipient, and gauges of the email
+ * queue broken down by sender address. Counters are only updated once the outcome they count is committed. Gauges are read from
+ * the {@link MessagingBacklog} of this node, rather than from the domain.
+ */
+public final class DeliveryMetrics {
+    public static final Timer RESOLUTION =
+            MessagingMetrics.timer("messaging_recipient_resolution_seconds", "Time resolving the recipients of a message");
+    public static final Timer HANDLER_CREATION =
+            MessagingMetrics.timer("messaging_handler_creation_seconds", "Time committing a batch of handlers");
+    public static final Timer RENDERING =
+            MessagingMetrics.timer("messaging_render_seconds", "Time rendering the MIME content of a message for a locale");
+    public static final Timer SMTP_SEND =
+            MessagingMetrics.timer("messaging_smtp_send_seconds", "Time sending the message of a handler to the relay");
+
+    public static final Counter DELIVERED =
+            MessagingMetrics.counter("messaging_recipients_delivered_total", "Recipients accepted by the relay");
+    public static final Counter FAILED =
+            MessagingMetrics.counter("messaging_recipients_failed_total", "Recipients rejected by the relay or given up on");
+    public static final Counter INVALID =
+            MessagingMetrics.counter("messaging_recipients_invalid_total", "Recipients without a valid address");
+    public static final Counter SUPPRESSED =
+            MessagingMetrics.counter("messaging_recipients_suppressed_total", "Recipients skipped for being blacklisted");
+    public static final Counter RETRIED =
+            MessagingMetrics.counter("messaging_recipients_retried_total", "Recipients scheduled for another delivery attempt");
+
+    private DeliveryMetrics() {
+    }
+
+    public static void registerGauges() {
+        MessagingMetrics.gauge("messaging_unfinished_reports", "Reports with recipients yet to be delivered", "sender",
+                MessagingBacklog::getUnfinishedReportCountBySender);
+        MessagingMetrics.gauge("messaging_remaining_recipients",
+                "Recipients yet to be delivered to or given up on, including those waiting for a retry", "sender",
+                MessagingBacklog::getRemainingRecipientsBySender);
+    }
+}
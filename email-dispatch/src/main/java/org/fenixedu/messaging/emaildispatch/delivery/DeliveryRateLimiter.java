@@ -0,0 +1,201 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Paces outgoing messages with token buckets: a global one for messages, a global one for recipients and, optionally, one for
+ * the messages of each sender. Any rate set to zero is not limited.
+ *
+ * The global rates adapt to the relay: they are halved whenever it answers with a transient (4xx) error and slowly grow back
+ * towards the configured rates while messages go through, so that delivery settles close to the rate the relay accepts.
+ *
+ * A share of the global rates is reserved for high priority messages. Bulk messages are paced at the rest, while high priority
+ * messages take the permits bulk ones leave unused when there are any, and otherwise only wait for their reserved share.
+ */
+public class DeliveryRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryRateLimiter.class);
+
+    // Rates are never lowered below this fraction of the configured ones
+    private static final double MIN_FACTOR = 0.05;
+    // Fraction of the configured rates recovered for each second of messages going through at the current rate
+    private static final double RECOVERY = 0.1;
+    // Rejections of messages sent before the last backoff took effect must not trigger another
+    private static final long BACKOFF_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static DeliveryRateLimiter instance = null;
+
+    private final double messageRate, recipientRate, senderRate, priorityShare;
+    private final RateLimiter messages, recipients, priorityMessages, priorityRecipients;
+    private final Map<String, RateLimiter> senders = new ConcurrentHashMap<>();
+    private final Ticker ticker;
+    private volatile double factor = 1;
+    private long lastBackoff;
+
+    protected DeliveryRateLimiter(double messageRate, double recipientRate, double senderRate, double priorityShare) {
+        this(messageRate, recipientRate, senderRate, priorityShare, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker the time source backoffs are spaced by, as the buckets themselves keep to the system clock
+     */
+    DeliveryRateLimiter(double messageRate, double recipientRate, double senderRate, double priorityShare, Ticker ticker) {
+        this.messageRate = messageRate;
+        this.recipientRate = recipientRate;
+        this.senderRate = senderRate;
+        this.priorityShare = priorityShare > 0 && priorityShare < 1 ? priorityShare : 0;
+        this.messages = create(messageRate * (1 - this.priorityShare));
+        this.recipients = create(recipientRate * (1 - this.priorityShare));
+        this.priorityMessages = create(messageRate * this.priorityShare);
+        this.priorityRecipients = create(recipientRate * this.priorityShare);
+        this.ticker = ticker;
+        this.lastBackoff = ticker.read() - BACKOFF_INTERVAL_NANOS;
+    }
+
+    private static RateLimiter create(double rate) {
+        return rate > 0 ? RateLimiter.create(rate) : null;
+    }
+
+    public static synchronized DeliveryRateLimiter getInstance() {
+        if (instance == null) {
+            ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+            instance = new DeliveryRateLimiter(conf.mailSenderRateMessages(), conf.mailSenderRateRecipients(),
+                    conf.mailSenderRateSenderMessages(), conf.mailSenderRatePriorityShare());
+        }
+        return instance;
+    }
+
+    /**
+     * Blocks until a message for the given number of recipients may be sent on behalf of the given sender.
+     *
+     * @param priority whether the message may use the share of the rates reserved for high priority messages
+     */
+    public void acquire(String sender, int recipientCount, boolean priority) {
+        if (senderRate > 0) {
+            senders.computeIfAbsent(sender, s -> RateLimiter.create(senderRate)).acquire();
+        }
+        acquire(messages, priority ? priorityMessages : null, 1);
+        if (recipientCount > 0) {
+            acquire(recipients, priority ? priorityRecipients : null, recipientCount);
+        }
+    }
+
+    private static void acquire(RateLimiter shared, RateLimiter reserved, int permits) {
+        if (reserved == null) {
+            if (shared != null) {
+                shared.acquire(permits);
+            }
+        } else if (shared == null || !shared.tryAcquire(permits)) {
+            reserved.acquire(permits);
+        }
+    }
+
+    /**
+     * Acknowledges a message accepted by the relay, recovering part of the rate lost to previous backoffs.
+     */
+    public void succeeded() {
+        if (factor < 1) {
+            synchronized (this) {
+                if (factor < 1) {
+                    double current = (messageRate > 0 ? messageRate : recipientRate > 0 ? recipientRate : 1) * factor;
+                    setFactor(Math.min(1, factor + RECOVERY / current));
+                }
+            }
+        }
+    }
+
+    /**
+     * Acknowledges a failure to send a message, backing off if the relay signaled it is throttling us.
+     */
+    public void failed(MessagingException e) {
+        if (isThrottling(e)) {
+            synchronized (this) {
+                long now = ticker.read();
+                if (now - lastBackoff >= BACKOFF_INTERVAL_NANOS) {
+                    lastBackoff = now;
+                    setFactor(Math.max(MIN_FACTOR, factor / 2));
+                    logger.warn("Relay is throttling delivery, lowering rates to {}% of the configured ones",
+                            (int) (factor * 100));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of the configured rates currently in effect
+     */
+    double getFactor() {
+        return factor;
+    }
+
+    /**
+     * @return the current rate of the message bucket for bulk or high priority messages, or zero if it is not limited
+     */
+    double getMessageRate(boolean priority) {
+        return rate(priority ? priorityMessages : messages);
+    }
+
+    /**
+     * @return the current rate of the recipient bucket for bulk or high priority messages, or zero if it is not limited
+     */
+    double getRecipientRate(boolean priority) {
+        return rate(priority ? priorityRecipients : recipients);
+    }
+
+    private static double rate(RateLimiter limiter) {
+        return limiter != null ? limiter.getRate() : 0;
+    }
+
+    private void setFactor(double factor) {
+        this.factor = factor;
+        setRate(messages, messageRate * (1 - priorityShare) * factor);
+        setRate(recipients, recipientRate * (1 - priorityShare) * factor);
+        setRate(priorityMessages, messageRate * priorityShare * factor);
+        setRate(priorityRecipients, recipientRate * priorityShare * factor);
+    }
+
+    private static void setRate(RateLimiter limiter, double rate) {
+        if (limiter != null) {
+            limiter.setRate(rate);
+        }
+    }
+
+    private static boolean isThrottling(MessagingException e) {
+        Exception cause = e;
+        while (cause != null) {
+            int code = returnCode(cause);
+            if (code >= 400 && code < 500) {
+                return true;
+            }
+            cause = cause instanceof MessagingException ? ((MessagingException) cause).getNextException() : null;
+        }
+        return false;
+    }
+
+    private static int returnCode(Exception e) {
+        if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPSenderFailedException) {
+            return ((SMTPSenderFailedException) e).getReturnCode();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.mail.MessagingException;
+
+import org.fenixedu.messaging.core.domain.MessagePriority;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.domain.MimeMessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Delivers the handlers of any number of reports in parallel on a bounded pool of workers. The number of workers bounds the
+ * global delivery concurrency, while the concurrency towards each relay is further bounded by the size of its transport pool.
+ * Each report is finished up once its last handler completes.
+ *
+ * Reports of high priority messages are delivered on a lane of their own, with dedicated workers, SMTP sessions and share of
+ * the delivery rate, so that they do not queue behind the handlers of bulk messages.
+ */
+public class EmailDeliveryEngine {
+    private static final Logger logger = LoggerFactory.getLogger(EmailDeliveryEngine.class);
+
+    private static EmailDeliveryEngine instance = null;
+
+    private final ExecutorService workers, priorityWorkers;
+    // Reports may be delivered by the email task and the dispatch daemon at the same time, but each handler only once
+    private final Set<MimeMessageHandler> inFlight = ConcurrentHashMap.newKeySet();
+
+    protected EmailDeliveryEngine(int threads, int priorityThreads) {
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactoryBuilder().setNameFormat("email-delivery-%d").setDaemon(true).build());
+        this.priorityWorkers = Executors.newFixedThreadPool(Math.max(1, priorityThreads),
+                new ThreadFactoryBuilder().setNameFormat("email-delivery-priority-%d").setDaemon(true).build());
+    }
+
+    public static synchronized EmailDeliveryEngine getInstance() {
+        if (instance == null) {
+            ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+            instance = new EmailDeliveryEngine(conf.mailSenderDeliveryThreads(), conf.mailSenderDeliveryPriorityThreads());
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.workers.shutdownNow();
+            instance.priorityWorkers.shutdownNow();
+            try {
+                instance.workers.awaitTermination(30, TimeUnit.SECONDS);
+                instance.priorityWorkers.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Delivers the given reports, returning only once every one of their handlers was attempted. Reports are submitted by
+     * priority, so that within a lane the most urgent are served first. Only the reports that this node manages to lease are
+     * delivered, the others are left to the nodes holding them.
+     */
+    public void deliver(Collection<LocalEmailMessageDispatchReport> reports) {
+        Map<LocalEmailMessageDispatchReport, MessagePriority> priorities = priorities(reports);
+        List<LocalEmailMessageDispatchReport> leased = DeliveryLeases.getInstance().acquire(
+                reports.stream().sorted(Comparator.comparing(priorities::get)).collect(Collectors.toList()));
+        CompletableFuture.allOf(leased.stream().map(report -> deliverLeased(report, priorities.get(report)))
+                .toArray(CompletableFuture[]::new)).join();
+    }
+
+    public CompletableFuture<Void> deliver(LocalEmailMessageDispatchReport report) {
+        if (DeliveryLeases.getInstance().acquire(Collections.singleton(report)).isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return deliverLeased(report, report.getPriority());
+    }
+
+    private CompletableFuture<Void> deliverLeased(LocalEmailMessageDispatchReport report, MessagePriority priority) {
+        ExecutorService lane = priority.isHigh() ? priorityWorkers : workers;
+        CompletableFuture<?>[] handlers = report.getPendingHandlers().stream().filter(inFlight::add)
+                .map(handler -> CompletableFuture.runAsync(() -> deliver(handler), lane)).toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(handlers).thenRunAsync(() -> finish(report), lane)
+                .whenComplete((result, error) -> DeliveryLeases.getInstance().release(report));
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static Map<LocalEmailMessageDispatchReport, MessagePriority> priorities(
+            Collection<LocalEmailMessageDispatchReport> reports) {
+        return reports.stream().collect(Collectors.toMap(Function.identity(), LocalEmailMessageDispatchReport::getPriority));
+    }
+
+    private void deliver(MimeMessageHandler handler) {
+        try {
+            handler.deliver();
+        } catch (MessagingException e) {
+            logger.error("Error sending message", e);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error sending message", e);
+        } finally {
+            inFlight.remove(handler);
+        }
+    }
+
+    private static void finish(LocalEmailMessageDispatchReport report) {
+        try {
+            if (report.finishDelivery()) {
+                MessagingBacklog.reportFinished(report.getExternalId());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error finishing up delivery of report {}", report.getExternalId(), e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.fenixedu.bennu.core.signals.DomainObjectEvent;
+import org.fenixedu.bennu.core.signals.Signal;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessageDispatchReport;
+import org.fenixedu.messaging.core.domain.MessagePriority;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.domain.EmailDispatchJob;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Dispatches and delivers messages as soon as they are sent, instead of waiting for the next runs of the message and email
+ * tasks. It is woken once the transaction that sends a message commits. High priority messages have a lane of their own, so
+ * they do not wait for the dispatch of bulk messages.
+ *
+ * The tasks are kept as a sweep for whatever the daemon misses, such as messages sent while it was down or handlers waiting
+ * for a retry. Every node runs a daemon and the tasks, so the same message may be dispatched by several of them at once: only
+ * the one holding the dispatch claim of its report goes on, as described in {@link EmailDispatchJob}.
+ */
+public class EmailDispatchDaemon {
+    private static final Logger logger = LoggerFactory.getLogger(EmailDispatchDaemon.class);
+
+    private static volatile EmailDispatchDaemon instance = null;
+    private static boolean registered = false;
+
+    private final ExecutorService lane, priorityLane;
+
+    protected EmailDispatchDaemon() {
+        this.lane = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("email-dispatch-daemon").setDaemon(true).build());
+        this.priorityLane = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("email-dispatch-daemon-priority").setDaemon(true).build());
+    }
+
+    public static synchronized void start() {
+        if (instance == null) {
+            instance = new EmailDispatchDaemon();
+        }
+        if (!registered) {
+            registered = true;
+            Signal.registerWithoutTransaction(Message.SIGNAL_SENT,
+                    (DomainObjectEvent<Message> event) -> wake(event.getInstance()));
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.lane.shutdownNow();
+            instance.priorityLane.shutdownNow();
+            instance = null;
+        }
+    }
+
+    private static void wake(Message message) {
+        EmailDispatchDaemon daemon = instance;
+        if (daemon != null) {
+            ExecutorService lane = priorityOf(message).isHigh() ? daemon.priorityLane : daemon.lane;
+            lane.execute(() -> process(message));
+        }
+    }
+
+    private static void process(Message message) {
+        try {
+            if (!isPending(message)) {
+                return;
+            }
+            MessageDispatchReport report = MessagingSystem.dispatch(message);
+            if (report instanceof LocalEmailMessageDispatchReport) {
+                EmailDeliveryEngine.getInstance().deliver((LocalEmailMessageDispatchReport) report);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error dispatching message {}, it is left for the next run of the tasks", message.getExternalId(), e);
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static MessagePriority priorityOf(Message message) {
+        return message.getPriority();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static boolean isPending(Message message) {
+        return message.isPendingDispatch();
+    }
+}
@@ -0,0 +1,72 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Arrays;
+
+/**
+ * Set of address ids, split in the manner of a roaring bitmap into chunks of the 65536 ids that share their high bits. A chunk
+ * keeps the low bits of its ids in a sorted array while it holds few of them, and switches to a plain bitmap once the array
+ * would take more room than the bitmap, so that no id takes more than two bytes however sparse or dense the set is.
+ */
+final class AddressBitmap {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int ARRAY_MAX = 4096;
+
+    private static final class Chunk {
+        private char[] values = new char[4];
+        private long[] bits = null;
+        private int size = 0;
+
+        private boolean add(char value) {
+            if (bits != null) {
+                long mask = 1L << value, word = bits[value >>> 6];
+                if ((word & mask) != 0) {
+                    return false;
+                }
+                bits[value >>> 6] = word | mask;
+            } else {
+                int index = Arrays.binarySearch(values, 0, size, value);
+                if (index >= 0) {
+                    return false;
+                }
+                if (size == ARRAY_MAX) {
+                    toBits();
+                    return add(value);
+                }
+                index = -index - 1;
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, Math.min(ARRAY_MAX, size * 2));
+                }
+                System.arraycopy(values, index, values, index + 1, size - index);
+                values[index] = value;
+            }
+            size++;
+            return true;
+        }
+
+        private void toBits() {
+            bits = new long[1 << CHUNK_BITS - 6];
+            for (int i = 0; i < size; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+    }
+
+    private Chunk[] chunks = new Chunk[0];
+
+    /**
+     * @return whether the id was not in the set yet
+     */
+    boolean add(int id) {
+        int high = id >>> CHUNK_BITS;
+        if (high >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(high + 1, chunks.length * 2));
+        }
+        Chunk chunk = chunks[high];
+        if (chunk == null) {
+            chunk = chunks[high] = new Chunk();
+        }
+        return chunk.add((char) (id & CHUNK_MASK));
+    }
+}
@@ -19,7 +19,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 public class EmailBlacklist extends EmailBlacklist_Base {
-    private static final Logger logger = LoggerFactory.getLogger(LocalEmailMessageDispatchReport.class);
+    private static final Logger logger = LoggerFactory.getLogger(EmailBlacklist.class);
 
     private static final String TIMESTAMP = "ts";
     private static final String EMAIL = "eml";
@@ -81,13 +81,21 @@ public class EmailBlacklist extends EmailBlacklist_Base {
     }
 
     public Set<String> getFailedEmails(int times) {
+        Multiset<String> failed = getFailures();
+        return failed.stream().filter(email -> failed.count(email) > times).collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the addresses that failed a delivery, each counted as many times as it failed
+     */
+    public Multiset<String> getFailures() {
         Multiset<String> failed = HashMultiset.create();
         for (JsonElement log : getBlacklist().getAsJsonArray()) {
             if (log.getAsJsonObject().get(STATUS).getAsString().equals(STATUS_FAILED)) {
                 failed.add(log.getAsJsonObject().get(EMAIL).getAsString());
             }
         }
-        return failed.stream().filter(email -> failed.count(email) > times).collect(Collectors.toSet());
+        return failed;
     }
 
     private void log(String email, String status) {
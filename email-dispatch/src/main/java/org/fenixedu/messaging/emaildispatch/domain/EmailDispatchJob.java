@@ -0,0 +1,243 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessageDispatchReport;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryLeases;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryMetrics;
+import org.fenixedu.messaging.emaildispatch.domain.MimeMessageHandler.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Dispatches a message as a resumable job. Recipients are resolved in a read-only transaction while the resulting handlers are
+ * created in fixed-size batches, each in a write transaction of its own. The report only joins the email queue, and the message
+ * only stops being pending, once the last batch is committed.
+ *
+ * Jobs for different messages resolve their recipients concurrently, but their write transactions are serialized, as they
+ * would otherwise conflict on the email queue and blacklist and be restarted. They are only serialized within this JVM, so
+ * jobs running on other nodes at the same time may still conflict.
+ *
+ * The handlers already committed for a report act as the job cursor: when a dispatch is interrupted, the next attempt resumes
+ * by skipping every address those handlers hold. This does not rely on group members being walked in the same order twice.
+ *
+ * As any node may dispatch a pending message, a job claims the dispatch of its report for its node, with the same expiry as a
+ * delivery lease, and renews the claim with every batch it commits. A job on another node gives up on the report while the
+ * claim holds, and a job whose claim was taken over stops before committing anything else, so that two nodes never commit
+ * handlers for the same addresses.
+ */
+public final class EmailDispatchJob implements Callable<LocalEmailMessageDispatchReport> {
+    private static final Logger logger = LoggerFactory.getLogger(EmailDispatchJob.class);
+    private static final int BATCH_SIZE = Math.max(1, EmailDispatchConfiguration.getConfiguration().mailSenderDispatchBatchSize());
+    private static final Object END = new Object();
+    private static final Object WRITES = new Object();
+
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("email-dispatch-%d").setDaemon(true).build());
+    private static final Map<Message, Future<LocalEmailMessageDispatchReport>> running = new ConcurrentHashMap<>();
+
+    private final Message message;
+    // Read when the report is prepared, for the backlog to break down reports by sender once they are queued
+    private String sender;
+
+    private EmailDispatchJob(Message message) {
+        this.message = message;
+    }
+
+    /**
+     * Dispatches the message, waiting for the job to finish. Jobs run on their own threads so that their transactions are
+     * independent of any transaction of the caller. Concurrent requests for the same message share the same job.
+     *
+     * @return the report, or null if the message could not be dispatched
+     */
+    static LocalEmailMessageDispatchReport dispatch(Message message) {
+        FutureTask<LocalEmailMessageDispatchReport> job = new FutureTask<>(new EmailDispatchJob(message));
+        Future<LocalEmailMessageDispatchReport> future = running.putIfAbsent(message, job);
+        if (future == null) {
+            future = job;
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    running.remove(message, job);
+                }
+            });
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            logger.error("Error dispatching message {}", message.getExternalId(), e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public LocalEmailMessageDispatchReport call() throws Exception {
+        LocalEmailMessageDispatchReport report = prepare();
+        if (report == null) {
+            return null;
+        }
+        Set<String> committed = committedAddresses(report);
+        if (!committed.isEmpty()) {
+            logger.info("Resuming dispatch of message {} after {} addresses", message.getExternalId(), committed.size());
+        }
+
+        BlockingQueue<Object> batches = new ArrayBlockingQueue<>(2);
+        Future<EmailRecipientResolver> resolution = executor.submit(() -> resolve(committed, batches));
+        try {
+            Object batch;
+            while ((batch = batches.take()) != END) {
+                if (batch instanceof Throwable) {
+                    throw new ExecutionException((Throwable) batch);
+                }
+                @SuppressWarnings("unchecked")
+                List<Envelope> envelopes = (List<Envelope>) batch;
+                synchronized (WRITES) {
+                    long start = System.nanoTime();
+                    commit(report, envelopes);
+                    DeliveryMetrics.HANDLER_CREATION.recordSince(start);
+                }
+            }
+            EmailRecipientResolver resolver = resolution.get();
+            synchronized (WRITES) {
+                complete(report, committed.size() + resolver.getValidCount(), resolver.getInvalidCount(),
+                        resolver.getSuppressedCount(), resolver.getInvalidAddresses());
+            }
+            DeliveryMetrics.INVALID.increment(resolver.getInvalidCount());
+            DeliveryMetrics.SUPPRESSED.increment(resolver.getSuppressedCount());
+            resolver.getInvalidAddresses().forEach(SuppressionIndex::invalid);
+            MessagingBacklog.reportQueued(report.getExternalId(), sender, committed.size() + resolver.getValidCount());
+            spool(report);
+            return report;
+        } finally {
+            resolution.cancel(true);
+        }
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private LocalEmailMessageDispatchReport prepare() {
+        sender = message.getSender().getAddress();
+        MessageDispatchReport existing = message.getDispatchReport();
+        LocalEmailMessageDispatchReport report;
+        if (existing == null) {
+            report = new LocalEmailMessageDispatchReport(message);
+        } else if (existing instanceof LocalEmailMessageDispatchReport
+                && ((LocalEmailMessageDispatchReport) existing).isDispatching()) {
+            report = (LocalEmailMessageDispatchReport) existing;
+        } else {
+            // Already dispatched, for instance by the dispatch daemon while the message task still saw the message as pending
+            logger.debug("Message {} already has a report that cannot be resumed", message.getExternalId());
+            return null;
+        }
+        if (!DeliveryLeases.getInstance().claimDispatch(report)) {
+            logger.debug("Message {} is being dispatched by another node", message.getExternalId());
+            return null;
+        }
+        return report;
+    }
+
+    private static void checkClaim(LocalEmailMessageDispatchReport report) {
+        if (!DeliveryLeases.getInstance().claimDispatch(report)) {
+            throw new IllegalStateException("Dispatch of report " + report.getExternalId() + " was taken over by another node");
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static Set<String> committedAddresses(LocalEmailMessageDispatchReport report) {
+        return report.getHandlerSet().stream().flatMap(MimeMessageHandler::getAddresses).collect(Collectors.toSet());
+    }
+
+    // Always ends the batches, with the error that stopped resolution if any, so that the job never waits for them forever
+    private EmailRecipientResolver resolve(Set<String> committed, BlockingQueue<Object> batches) throws InterruptedException {
+        Object last = END;
+        try {
+            long start = System.nanoTime();
+            EmailRecipientResolver resolver = resolveEnvelopes(committed, batches);
+            DeliveryMetrics.RESOLUTION.recordSince(start);
+            return resolver;
+        } catch (Throwable t) {
+            last = t;
+            throw t;
+        } finally {
+            batches.put(last);
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private EmailRecipientResolver resolveEnvelopes(Set<String> committed, BlockingQueue<Object> batches) {
+        List<List<Envelope>> pending = new ArrayList<>();
+        pending.add(new ArrayList<>(BATCH_SIZE));
+        EmailRecipientResolver resolver = new EmailRecipientResolver(message, committed, envelope -> {
+            List<Envelope> batch = pending.get(0);
+            batch.add(envelope);
+            if (batch.size() >= BATCH_SIZE) {
+                put(batches, batch);
+                pending.set(0, new ArrayList<>(BATCH_SIZE));
+            }
+        });
+        resolver.resolve();
+        if (!pending.get(0).isEmpty()) {
+            put(batches, pending.get(0));
+        }
+        return resolver;
+    }
+
+    private static void put(BlockingQueue<Object> batches, List<Envelope> batch) {
+        try {
+            batches.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Dispatch was interrupted", e);
+        }
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void commit(LocalEmailMessageDispatchReport report, List<Envelope> envelopes) {
+        checkClaim(report);
+        envelopes.forEach(envelope -> report.addHandler(new MimeMessageHandler(envelope)));
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void complete(LocalEmailMessageDispatchReport report, int validCount, int invalidCount, int suppressedCount,
+            List<String> invalids) {
+        checkClaim(report);
+        EmailBlacklist blacklist = EmailBlacklist.getInstance();
+        invalids.forEach(blacklist::addInvalidAddress);
+        report.dispatched(validCount, invalidCount, suppressedCount);
+        report.releaseLease(DeliveryLeases.getInstance().getNode());
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static void spool(LocalEmailMessageDispatchReport report) {
+        report.getHandlerSet().stream().map(MimeMessageHandler::getLocale).distinct()
+                .forEach(locale -> RenderedMessageCache.spool(report, locale));
+    }
+}
@@ -0,0 +1,129 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.mail.Message.RecipientType;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.messaging.core.domain.ContactDirectory;
+import org.fenixedu.messaging.core.domain.ContactDirectory.Contact;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+
+/**
+ * Walks the members of a message's recipient groups one at a time, emitting a handler as soon as enough addresses for it were
+ * gathered for a given locale. Only the set of addresses seen so far grows with the size of the audience, kept as a bitmap of
+ * their ids in the {@link ContactDirectory}, and addresses themselves are only handled once known to be new. The few addresses
+ * no cached contact holds, such as single bccs, are kept as they are. Handlers are emitted as envelopes so that resolution can
+ * run in a read-only transaction.
+ */
+final class EmailRecipientResolver {
+    private static final boolean RECIPIENTS_AS_BCCS = EmailDispatchConfiguration.getConfiguration().recipientsAsBccs();
+
+    private final Message message;
+    private final Locale defLocale;
+    private final Set<Locale> messageLocales;
+    private final Consumer<MimeMessageHandler.Envelope> sink;
+    private final AddressBitmap seen = new AddressBitmap();
+    private final Set<String> seenWithoutId = new HashSet<>();
+    private final Set<User> withoutAddress = new HashSet<>();
+    private final Map<Locale, MimeMessageHandler.Batcher> batchers = new HashMap<>();
+    private final List<String> invalids = new ArrayList<>();
+    private int validCount = 0, invalidCount = 0, suppressedCount = 0;
+
+    /**
+     * @param skipped addresses that must not be emitted, such as those that already have a handler
+     */
+    EmailRecipientResolver(Message message, Set<String> skipped, Consumer<MimeMessageHandler.Envelope> sink) {
+        this.message = message;
+        this.defLocale = message.getPreferredLocale();
+        this.messageLocales = message.getContentLocales();
+        this.sink = sink;
+        skipped.forEach(this::see);
+    }
+
+    void resolve() {
+        //XXX force disjoint recipient lists - priority order: tos > ccs > bccs > single bccs
+        if (RECIPIENTS_AS_BCCS) {
+            members(message.getToMembers(), RecipientType.BCC);
+            members(message.getCcMembers(), RecipientType.BCC);
+        } else {
+            members(message.getToMembers(), RecipientType.TO);
+            members(message.getCcMembers(), RecipientType.CC);
+        }
+        members(message.getBccMembers(), RecipientType.BCC);
+        message.getSingleBccsSet().stream().filter(this::see)
+                .forEach(email -> add(RecipientType.BCC, email, defLocale));
+        batchers.values().forEach(MimeMessageHandler.Batcher::flush);
+    }
+
+    private void members(Stream<User> members, RecipientType type) {
+        members.forEach(user -> {
+            Contact contact = ContactDirectory.contact(user);
+            if (contact == null) {
+                return;
+            }
+            if (contact.getEmail() == null) {
+                // Counted once however many of the recipient groups the user is a member of
+                if (withoutAddress.add(user)) {
+                    invalidCount++;
+                }
+            } else if (!seenWithoutId.contains(contact.getEmail()) && seen.add(ContactDirectory.addressId(contact))) {
+                add(type, contact.getEmail(), locale(contact));
+            }
+        });
+    }
+
+    /**
+     * @return whether the address was not seen yet
+     */
+    private boolean see(String email) {
+        int id = ContactDirectory.addressId(email);
+        return id >= 0 ? seen.add(id) : seenWithoutId.add(email);
+    }
+
+    private Locale locale(Contact contact) {
+        Locale locale = contact.getLocale();
+        return locale == null || !messageLocales.contains(locale) ? defLocale : locale;
+    }
+
+    private void add(RecipientType type, String email, Locale locale) {
+        if (!MessagingSystem.Util.isValidEmail(email)) {
+            invalidCount++;
+            invalids.add(email);
+        } else if (SuppressionIndex.isSuppressed(email)) {
+            suppressedCount++;
+        } else {
+            validCount++;
+            batchers.computeIfAbsent(locale, l -> new MimeMessageHandler.Batcher(l, sink)).add(type, email);
+        }
+    }
+
+    int getValidCount() {
+        return validCount;
+    }
+
+    int getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return the number of valid addresses skipped for being blacklisted
+     */
+    int getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    List<String> getInvalidAddresses() {
+        return invalids;
+    }
+}
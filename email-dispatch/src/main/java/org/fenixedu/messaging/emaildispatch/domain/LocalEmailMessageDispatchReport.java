@@ -5,34 +5,29 @@ import pt.ist.fenixframework.Atomic.TxMode;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-import javax.mail.MessagingException;
-
-import org.fenixedu.bennu.core.domain.User;
-import org.fenixedu.bennu.core.domain.UserProfile;
-import org.fenixedu.bennu.core.groups.Group;
 import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagePriority;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
-import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDeliveryEngine;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Maps;
-
 public class LocalEmailMessageDispatchReport extends LocalEmailMessageDispatchReport_Base {
     private static final Logger logger = LoggerFactory.getLogger(LocalEmailMessageDispatchReport.class);
-    private static final boolean RECIPIENTS_AS_BCCS = EmailDispatchConfiguration.getConfiguration().recipientsAsBccs();
+
+    protected LocalEmailMessageDispatchReport(Message message) {
+        super();
+        setMessage(message);
+        setTotalCount(0);
+        setDeliveredCount(0);
+        setFailedCount(0);
+        setInvalidCount(0);
+    }
 
     public LocalEmailMessageDispatchReport(Collection<MimeMessageHandler> handlers, Integer validCount, Integer invalidCount) {
         super();
@@ -44,114 +39,165 @@ public class LocalEmailMessageDispatchReport extends LocalEmailMessageDispatchRe
         setQueue(MessagingSystem.getInstance());
     }
 
+    /**
+     * @return whether handlers for this report are still being created, in which case it is not yet queued for delivery
+     */
+    public boolean isDispatching() {
+        return getQueue() == null && getFinishedDelivery() == null;
+    }
+
+    void dispatched(int validCount, int invalidCount, int suppressedCount) {
+        setTotalCount(validCount + invalidCount + suppressedCount);
+        setInvalidCount(invalidCount);
+        setSuppressedCount(suppressedCount);
+        setQueue(MessagingSystem.getInstance());
+        markDispatched();
+    }
+
     @Override
     public boolean isFinished() {
-        return getHandlerSet().isEmpty();
+        return getHandlerSet().stream().allMatch(MimeMessageHandler::isCompleted);
+    }
+
+    @Override
+    public int getDeliveredCount() {
+        return super.getDeliveredCount() + getHandlerSet().stream().mapToInt(MimeMessageHandler::getDeliveredCount).sum();
+    }
+
+    @Override
+    public int getFailedCount() {
+        return super.getFailedCount() + getHandlerSet().stream().mapToInt(MimeMessageHandler::getFailedCount).sum();
     }
 
     public void deliver() {
-        if (!isFinished()) {
-            for (MimeMessageHandler handler : getHandlerSet()) {
-                try {
-                    handler.deliver();
-                } catch (MessagingException e) {
-                    logger.error("Error sending message", e);
-                }
-            }
-            if (isFinished()) {
-                if (!super.isFinished()) {
-                    logger.error("Numbers are not right: total {} delivered {} invalid {} failed {}", getTotalCount(),
-                            getDeliveredCount(), getInvalidCount(), getFailedCount());
-                }
-                finishUpDelivery();
-            }
-        } else if (getQueue() != null) {
-            finishUpDelivery();
-        }
+        EmailDeliveryEngine.getInstance().deliver(this).join();
     }
 
-    @Atomic(mode = TxMode.WRITE)
-    private void finishUpDelivery() {
-        setFinishedDelivery(new DateTime());
-        setQueue(null);
+    @Atomic(mode = TxMode.READ)
+    public MessagePriority getPriority() {
+        return getMessage().getPriority();
     }
 
-    public static LocalEmailMessageDispatchReport dispatch(Message message) {
-        List<String> invalids = new ArrayList<String>();
-        EmailBlacklist blacklist = EmailBlacklist.getInstance();
-        Predicate<String> validator = email -> {
-            boolean valid = MessagingSystem.Util.isValidEmail(email);
-            if (!valid) {
-                invalids.add(email);
-            }
-            return valid;
-        };
-        Set<UserProfile> tos = getProfiles(message.getToGroups()), ccs = getProfiles(message.getCcGroups()), bccs =
-                getProfiles(message.getBccGroups());
-        Collection<MimeMessageHandler> handlers;
-        int valids;
-
-        Map<Locale, Set<String>> tosByLocale, ccsByLocale, bccsByLocale;
-        Locale defLocale = message.getPreferredLocale();
-        Set<Locale> messageLocales = message.getContentLocales();
-
-        if (RECIPIENTS_AS_BCCS) {
-            bccs.addAll(tos);
-            bccs.addAll(ccs);
-
-            tosByLocale = Maps.newHashMap();
-            ccsByLocale = Maps.newHashMap();
-            bccsByLocale = emailsByMessageLocale(bccs, validator, defLocale, messageLocales);
-            Set<String> singleBccs = message.getSingleBccsSet().stream().filter(validator).collect(Collectors.toSet());
-            bccsByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleBccs);
-        } else {
-            //XXX force disjoint recipient lists - priority order: tos > ccs > bccs > single bccs
-            ccs.removeAll(tos);
-            bccs.removeAll(tos);
-            bccs.removeAll(ccs);
-            Set<String> singleBccs = message.getSingleBccsSet();
-            tos.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-            ccs.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-            bccs.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-
-            tosByLocale = emailsByMessageLocale(tos, validator, defLocale, messageLocales);
-            ccsByLocale = emailsByMessageLocale(ccs, validator, defLocale, messageLocales);
-            bccsByLocale = emailsByMessageLocale(bccs, validator, defLocale, messageLocales);
-            singleBccs = singleBccs.stream().filter(validator).collect(Collectors.toSet());
-            bccsByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleBccs);
+    /**
+     * Walks every handler of the report, so its cost grows with the handlers left, including those waiting for a retry. These
+     * are only skipped, by comparing their retry time, rather than attempted again.
+     *
+     * @return the handlers yet to be completed that are due for delivery
+     */
+    @Atomic(mode = TxMode.READ)
+    public Set<MimeMessageHandler> getPendingHandlers() {
+        DateTime now = new DateTime();
+        return getHandlerSet().stream().filter(h -> !h.isCompleted() && h.isDue(now)).collect(Collectors.toSet());
+    }
+
+    /**
+     * Folds the outcome of completed handlers into the report counters, delivery times and blacklist, removing those handlers,
+     * and finishes up the delivery if no handlers remain, dropping the messages rendered for it. Retries add up the attempts
+     * made after the first one, over every handler.
+     *
+     * @return whether the delivery is finished
+     */
+    public boolean finishDelivery() {
+        List<String> failed = new ArrayList<>();
+        boolean finished = fold(failed);
+        failed.forEach(SuppressionIndex::failed);
+        if (finished) {
+            // Once the fold is committed, as spooled files cannot be restored should its transaction restart or fail
+            RenderedMessageCache.evict(this);
         }
+        return finished;
+    }
 
-        handlers = MimeMessageHandler.create(tosByLocale, ccsByLocale, bccsByLocale);
-        valids = Stream.of(tosByLocale, ccsByLocale, bccsByLocale).flatMap(m -> m.values().stream()).mapToInt(Collection::size)
-                .sum();
+    // The failed addresses are gathered anew each time the transaction runs, as it may be restarted
+    @Atomic(mode = TxMode.WRITE)
+    boolean fold(List<String> failed) {
+        failed.clear();
+        Set<MimeMessageHandler> completed =
+                getHandlerSet().stream().filter(MimeMessageHandler::isCompleted).collect(Collectors.toSet());
+        if (!completed.isEmpty()) {
+            setDeliveredCount(super.getDeliveredCount()
+                    + completed.stream().mapToInt(MimeMessageHandler::getDeliveredCount).sum());
+            setFailedCount(super.getFailedCount() + completed.stream().mapToInt(MimeMessageHandler::getFailedCount).sum());
+            completed.stream().filter(handler -> handler.getDeliveredCount() > 0).map(MimeMessageHandler::getCompleted)
+                    .forEach(this::delivered);
+            setRetries(getRetries() + completed.stream().mapToInt(MimeMessageHandler::getRetries).sum());
+            completed.stream().flatMap(MimeMessageHandler::getFailedAddressStream).forEach(failed::add);
+            if (!failed.isEmpty()) {
+                EmailBlacklist blacklist = EmailBlacklist.getInstance();
+                failed.forEach(blacklist::addFailedAddress);
+            }
+            completed.forEach(MimeMessageHandler::delete);
+        }
+        if (getHandlerSet().isEmpty() && getQueue() != null) {
+            if (!super.isFinished()) {
+                logger.error("Numbers are not right: total {} delivered {} invalid {} suppressed {} failed {}", getTotalCount(),
+                        getDeliveredCount(), getInvalidCount(), getSuppressedCount(), getFailedCount());
+            }
+            setFinishedDelivery(new DateTime());
+            setQueue(null);
+        }
+        return getFinishedDelivery() != null;
+    }
 
-        invalids.stream().forEach(blacklist::addInvalidAddress);
+    /**
+     * Leases the delivery of this report to the given node until the given time, unless another node holds a lease on it that
+     * has not expired yet or the report is no longer queued. Renews the lease if the node already holds it.
+     *
+     * @param skewMillis how long past its expiry, as told by the local clock, the lease of another node is still honored
+     * @return whether the node holds the lease
+     */
+    public boolean lease(String owner, DateTime expiry, long skewMillis) {
+        String current = getLeaseOwner();
+        if (getQueue() == null && !owner.equals(current)) {
+            return false;
+        }
+        if (current != null && !current.equals(owner) && getLeaseExpiry() != null
+                && getLeaseExpiry().plus(skewMillis).isAfterNow()) {
+            return false;
+        }
+        setLeaseOwner(owner);
+        setLeaseExpiry(expiry);
+        return true;
+    }
 
-        return new LocalEmailMessageDispatchReport(handlers, valids, invalids.size());
+    /**
+     * Claims the dispatch of this report for the given node until the given time, unless the report is no longer being dispatched
+     * or another node holds a claim on it that has not expired yet. Renews the claim if the node already holds it. Claims are
+     * kept as leases, as a report is only leased for delivery once dispatched.
+     *
+     * @param skewMillis how long past its expiry, as told by the local clock, the claim of another node is still honored
+     * @return whether the node holds the claim
+     */
+    public boolean claimDispatch(String owner, DateTime expiry, long skewMillis) {
+        if (!isDispatching()) {
+            return false;
+        }
+        String current = getLeaseOwner();
+        if (current != null && !current.equals(owner) && getLeaseExpiry() != null
+                && getLeaseExpiry().plus(skewMillis).isAfterNow()) {
+            return false;
+        }
+        setLeaseOwner(owner);
+        setLeaseExpiry(expiry);
+        return true;
     }
 
-    private static Map<Locale, Set<String>> emailsByMessageLocale(Set<UserProfile> users, Predicate<String> emailValidator,
-            Locale defLocale, Set<Locale> messageLocales) {
-        Map<Locale, Set<String>> emails = new HashMap<>();
-        users.stream().filter(p -> emailValidator.test(p.getEmail())).forEach(p -> {
-            Locale locale = p.getPreferredLocale();
-            if (locale == null || !messageLocales.contains(locale)) {
-                locale = defLocale;
-            }
-            emails.computeIfAbsent(locale, k -> new HashSet<>()).add(p.getEmail());
-        });
-        return emails;
+    public void releaseLease(String owner) {
+        if (owner.equals(getLeaseOwner())) {
+            setLeaseOwner(null);
+            setLeaseExpiry(null);
+        }
     }
 
-    private static Set<UserProfile> getProfiles(Set<Group> groups) {
-        return groups.stream().flatMap(g -> g.getMembers()).map(User::getProfile).filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+    public static LocalEmailMessageDispatchReport dispatch(Message message) {
+        return EmailDispatchJob.dispatch(message);
     }
 
     @Override
     public void delete() {
         setQueue(null);
         getHandlerSet().forEach(MimeMessageHandler::delete);
+        RenderedMessageCache.evict(this);
         super.delete();
     }
 }
@@ -0,0 +1,170 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+
+/**
+ * Local directory holding the rendered messages of the reports being delivered, one file per report and locale. Files are
+ * written once, never modified, and memory-mapped when read so that delivery streams them without copying them to the heap.
+ * The spool is only used when a directory is configured.
+ */
+final class MessageSpool {
+    private static final Logger logger = LoggerFactory.getLogger(MessageSpool.class);
+    private static final String DIR = EmailDispatchConfiguration.getConfiguration().mailSenderSpoolDir();
+    private static final String SUFFIX = ".eml";
+
+    private static final Map<String, ByteBuffer> MAPPED = new ConcurrentHashMap<>();
+
+    private MessageSpool() {
+    }
+
+    static boolean isEnabled() {
+        return !Strings.isNullOrEmpty(DIR);
+    }
+
+    /**
+     * @return a stream over the spooled message, or null if it was not spooled yet
+     */
+    static InputStream open(String key) throws IOException {
+        try {
+            ByteBuffer mapped = MAPPED.computeIfAbsent(key, k -> {
+                try {
+                    return map(path(k));
+                } catch (NoSuchFileException e) {
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return mapped == null ? null : new MappedInputStream(mapped);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static InputStream write(String key, byte[] rendered) throws IOException {
+        Path dir = Paths.get(DIR);
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(tmp, rendered);
+            Files.move(tmp, path(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        ByteBuffer mapped = map(path(key));
+        MAPPED.put(key, mapped);
+        return new MappedInputStream(mapped);
+    }
+
+    static void delete(String prefix) {
+        MAPPED.keySet().removeIf(key -> key.startsWith(prefix));
+        Path dir = Paths.get(DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> spooled = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+            for (Path path : spooled) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            logger.warn("Error deleting spooled messages {}", prefix, e);
+        }
+    }
+
+    private static Path path(String key) {
+        return Paths.get(DIR, key + SUFFIX);
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Shares a single mapping among any number of streams, as required for the content of parsed messages not to be copied.
+     */
+    private static final class MappedInputStream extends InputStream implements SharedInputStream {
+        private final ByteBuffer buffer;
+
+        private MappedInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.slice();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+
+        @Override
+        public long getPosition() {
+            return buffer.position();
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            ByteBuffer shared = buffer.duplicate();
+            shared.limit(end < 0 ? buffer.limit() : (int) end);
+            shared.position((int) start);
+            return new MappedInputStream(shared);
+        }
+    }
+}
@@ -1,139 +1,118 @@
 package org.fenixedu.messaging.emaildispatch.domain;
 
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.mail.Address;
-import javax.mail.BodyPart;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
 
-import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
-import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
 import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
 import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryMetrics;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryRateLimiter;
+import org.fenixedu.messaging.emaildispatch.transport.SmtpTransportPool;
 import org.joda.time.DateTime;
 
-import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
-
 import pt.ist.fenixframework.Atomic;
 import pt.ist.fenixframework.Atomic.TxMode;
 
 public final class MimeMessageHandler extends MimeMessageHandler_Base {
     private static final int MAX_RECIPIENTS = EmailDispatchConfiguration.getConfiguration().mailSenderMaxRecipients();
+    private static final int MAX_ATTEMPTS =
+            Math.max(1, EmailDispatchConfiguration.getConfiguration().mailSenderRetryMaxAttempts());
+    private static final long RETRY_DELAY_MILLIS =
+            EmailDispatchConfiguration.getConfiguration().mailSenderRetryDelaySeconds() * 1000L;
+    private static final long RETRY_MAX_DELAY_MILLIS =
+            EmailDispatchConfiguration.getConfiguration().mailSenderRetryMaxDelaySeconds() * 1000L;
 
     private static Session SESSION = null;
 
-    private static synchronized Session session() {
-        final Properties properties = new Properties();
-        ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
-        properties.put("mail.smtp.host", conf.mailSmtpHost());
-        properties.put("mail.smtp.name", conf.mailSmtpName());
-        properties.put("mail.smtp.port", conf.mailSmtpPort());
-        properties.put("mailSender.max.recipients", conf.mailSenderMaxRecipients());
-        SESSION = Session.getDefaultInstance(properties, null);
+    static synchronized Session session() {
+        if (SESSION == null) {
+            final Properties properties = new Properties();
+            ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+            properties.put("mail.smtp.host", conf.mailSmtpHost());
+            properties.put("mail.smtp.name", conf.mailSmtpName());
+            properties.put("mail.smtp.port", conf.mailSmtpPort());
+            properties.put("mailSender.max.recipients", conf.mailSenderMaxRecipients());
+            SESSION = Session.getDefaultInstance(properties, null);
+        }
         return SESSION;
     }
 
     protected MimeMessageHandler(Locale locale, Collection<String> tos, Collection<String> ccs, Collection<String> bccs) {
+        this(new Envelope(locale, tos, ccs, bccs));
+    }
+
+    protected MimeMessageHandler(Envelope envelope) {
         super();
-        setLocale(locale);
-        if (tos != null) {
-            setToAddresses(MessagingSystem.Util.toEmailListString(tos));
-        }
-        if (ccs != null) {
-            setCcAddresses(MessagingSystem.Util.toEmailListString(ccs));
-        }
-        if (bccs != null) {
-            setBccAddresses(MessagingSystem.Util.toEmailListString(bccs));
-        }
+        setLocale(envelope.locale);
+        setDeliveredCount(0);
+        setFailedCount(0);
+        setAttempts(0);
+        setToAddresses(envelope.tos);
+        setCcAddresses(envelope.ccs);
+        setBccAddresses(envelope.bccs);
     }
 
-    protected String getFrom() {
-        Sender sender = getReport().getMessage().getSender();
-        String name = sender.getName();
-        String from = sender.getAddress();
-        return Strings.isNullOrEmpty(name) ? from : name.replace(',', ' ').trim() + " <" + from + ">";
+    /**
+     * The recipients of a handler yet to be created, so that they can be gathered outside of a write transaction.
+     */
+    static final class Envelope {
+        private final Locale locale;
+        private final String tos, ccs, bccs;
+
+        Envelope(Locale locale, Collection<String> tos, Collection<String> ccs, Collection<String> bccs) {
+            this.locale = locale;
+            this.tos = tos != null ? MessagingSystem.Util.toEmailListString(tos) : null;
+            this.ccs = ccs != null ? MessagingSystem.Util.toEmailListString(ccs) : null;
+            this.bccs = bccs != null ? MessagingSystem.Util.toEmailListString(bccs) : null;
+        }
     }
 
+    /**
+     * Stamps this handler's recipients and a Message-ID onto the message rendered for its report and locale.
+     */
     protected MimeMessage mimeMessage() throws AddressException, MessagingException {
-        Message message = getReport().getMessage();
-        Locale locale = getLocale();
-        String[] languages = { locale.toLanguageTag() };
-        MimeMessage mimeMessage = new MimeMessage(session()) {
+        InputStream rendered = RenderedMessageCache.open(getReport(), getLocale());
+        // Headers are only written when the message is sent, outside of the transaction, so domain state is read beforehand
+        String handlerId = getExternalId();
+        MimeMessage mimeMessage = new MimeMessage(session(), rendered) {
             private String fenixMessageId = null;
 
             @Override
             public String getMessageID() throws MessagingException {
                 if (fenixMessageId == null) {
-                    fenixMessageId = getExternalId() + "." + new DateTime().getMillis() + "@fenix";
+                    fenixMessageId = handlerId + "." + new DateTime().getMillis() + "@fenix";
                 }
                 return fenixMessageId;
             }
 
             @Override
-            protected void updateMessageID() throws MessagingException {
+            protected void updateHeaders() throws MessagingException {
+                // The rendered content and its headers are already encoded, only the Message-ID is missing
                 setHeader("Message-ID", getMessageID());
-                setHeader("Date", formatDate(message.getCreated().getMillis()));
-            }
-
-            private String formatDate(final long millis) {
-                return new SimpleDateFormat("E, d MMM yyyy HH:mm:ss Z", Locale.US).format(new Date(millis));
             }
         };
 
-        InternetAddress fromAddr = new InternetAddress(getFrom());
-        mimeMessage.setFrom(fromAddr);
-
-        mimeMessage.setContentLanguage(languages);
-
-        mimeMessage.setSubject(getContent(message.getSubject(), locale));
-
-        String replyTo = message.getReplyTo();
-        if (!Strings.isNullOrEmpty(replyTo)) {
-            Address[] replyTos = { new InternetAddress(replyTo) };
-            mimeMessage.setReplyTo(replyTos);
-        }
-
-        final MimeMultipart mimeMultipart = new MimeMultipart();
-
-        final String htmlBody = getContent(message.getHtmlBody(), locale);
-        if (htmlBody != null && !htmlBody.trim().isEmpty()) {
-            final BodyPart bodyPart = new MimeBodyPart();
-            bodyPart.setContent(htmlBody, "text/html");
-            mimeMultipart.addBodyPart(bodyPart);
-        }
-
-        final String textBody = getContent(message.getTextBody(), locale);
-        if (textBody != null && !textBody.trim().isEmpty()) {
-            final BodyPart bodyPart = new MimeBodyPart();
-            bodyPart.setText(textBody);
-            mimeMultipart.addBodyPart(bodyPart);
-        }
-
-        mimeMessage.setContent(mimeMultipart);
-
         String addresses = getToAddresses();
         if (addresses != null) {
             mimeMessage.addRecipients(RecipientType.TO, addresses);
@@ -150,17 +129,6 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         return mimeMessage;
     }
 
-    private static String getContent(LocalizedString ls, Locale l) {
-        if (ls != null) {
-            String s = ls.getContent(l);
-            if (s == null) {
-                return ls.getContent();
-            }
-            return s;
-        }
-        return null;
-    }
-
     public static Collection<MimeMessageHandler> create(Map<Locale, Set<String>> tos, Map<Locale, Set<String>> ccs,
             Map<Locale, Set<String>> bccs) {
         return Stream.of(tos, ccs, bccs).flatMap(m -> m.keySet().stream()).distinct()
@@ -168,88 +136,266 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
                 .collect(Collectors.toSet());
     }
 
-    /*XXX Best effort minimizes number of mime messages using a moving window. This approach also allows to group Tos and Ccs so
-     * that, in the most common case where there is an overflow of Bccs, at least the Tos and Ccs will be visible to each other.
-     * Note however that this intent is somewhat wasted when there are multiple preferred locales among Tos and Ccs due to the
-     * locale separation */
     private static Collection<MimeMessageHandler> bestEffortCreate(Locale locale, Collection<String> tos, Collection<String> ccs,
             Collection<String> bccs) {
         Collection<MimeMessageHandler> handlers = new ArrayList<>();
-        List<String> all =
-                Stream.of(tos, ccs, bccs).filter(Objects::nonNull).flatMap(Collection::stream).collect(Collectors.toList()),
-                partial;
-        List<List<String>> split = Lists.partition(all, MAX_RECIPIENTS);
-        MimeMessageHandler handler;
-
-        int nHandlers = split.size(), nRecipients = all.size(), nTos = tos != null ? tos.size() : 0, nCcs =
-                ccs != null ? ccs.size() : 0, nVisible = nTos + nCcs;
-        int ccStart, bccStart, mixedTos = nTos % MAX_RECIPIENTS, mixedVisible = nVisible % MAX_RECIPIENTS;
-        if (nTos == nRecipients && mixedTos != 0) {
-            ccStart = bccStart = nHandlers;
-        } else if (nVisible == nRecipients && mixedVisible != 0) {
-            ccStart = nTos / MAX_RECIPIENTS;
-            bccStart = nHandlers;
-        } else {
-            ccStart = nTos / MAX_RECIPIENTS;
-            bccStart = nVisible / MAX_RECIPIENTS;
-        }
+        Batcher batcher = new Batcher(locale, envelope -> handlers.add(new MimeMessageHandler(envelope)));
+        batcher.addAll(RecipientType.TO, tos);
+        batcher.addAll(RecipientType.CC, ccs);
+        batcher.addAll(RecipientType.BCC, bccs);
+        batcher.flush();
+        return handlers;
+    }
 
-        int i;
-        for (i = 0; i < ccStart; i++) { // Tos only
-            handlers.add(new MimeMessageHandler(locale, split.get(i), null, null));
+    /*XXX Best effort minimizes number of mime messages using a moving window. This approach also allows to group Tos and Ccs so
+     * that, in the most common case where there is an overflow of Bccs, at least the Tos and Ccs will be visible to each other.
+     * Note however that this intent is somewhat wasted when there are multiple preferred locales among Tos and Ccs due to the
+     * locale separation. The window only achieves this grouping if all Tos are added before Ccs and all Ccs before Bccs. */
+    static final class Batcher {
+        private final Locale locale;
+        private final Consumer<Envelope> sink;
+        private final List<String> tos = new ArrayList<>(), ccs = new ArrayList<>(), bccs = new ArrayList<>();
+
+        Batcher(Locale locale, Consumer<Envelope> sink) {
+            this.locale = locale;
+            this.sink = sink;
         }
-        if (i < nHandlers && mixedTos != 0) {
-            partial = split.get(i);
-            if (nCcs == 0) { //Tos along with Bccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), null,
-                        partial.subList(mixedTos, partial.size()));
-            } else if (ccStart == bccStart) {// Tos along with Ccs and Bccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), partial.subList(mixedTos, mixedVisible),
-                        partial.subList(mixedVisible, partial.size()));
-            } else { // Tos along with Ccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), partial.subList(mixedTos, partial.size()),
-                        null);
+
+        void add(RecipientType type, String address) {
+            if (type == RecipientType.TO) {
+                tos.add(address);
+            } else if (type == RecipientType.CC) {
+                ccs.add(address);
+            } else {
+                bccs.add(address);
+            }
+            if (tos.size() + ccs.size() + bccs.size() >= MAX_RECIPIENTS) {
+                flush();
             }
-            handlers.add(handler);
-            i++;
         }
-        for (; i < bccStart; i++) { // Ccs only
-            handlers.add(new MimeMessageHandler(locale, null, split.get(i), null));
+
+        void addAll(RecipientType type, Collection<String> addresses) {
+            if (addresses != null) {
+                addresses.forEach(address -> add(type, address));
+            }
         }
-        if (i < nHandlers && mixedVisible != 0 && ccStart != bccStart) { // Ccs along with Bccs
-            partial = split.get(i);
-            handlers.add(new MimeMessageHandler(locale, null, partial.subList(0, mixedVisible),
-                    partial.subList(mixedVisible, partial.size())));
-            i++;
+
+        void flush() {
+            if (!tos.isEmpty() || !ccs.isEmpty() || !bccs.isEmpty()) {
+                sink.accept(new Envelope(locale, emptyToNull(tos), emptyToNull(ccs), emptyToNull(bccs)));
+                tos.clear();
+                ccs.clear();
+                bccs.clear();
+            }
         }
-        for (; i < nHandlers; i++) { // Bccs only
-            handlers.add(new MimeMessageHandler(locale, null, null, split.get(i)));
+
+        private static List<String> emptyToNull(List<String> addresses) {
+            return addresses.isEmpty() ? null : addresses;
         }
-        return handlers;
     }
 
-    @Atomic(mode = TxMode.WRITE)
+    /**
+     * Delivers this handler's message in three steps: the message is built in a read-only transaction, sent outside of any
+     * transaction and its outcome recorded in a short write transaction. This keeps write transactions from spanning the SMTP
+     * conversation and ensures that a conflict while recording the outcome does not send the message again. Must therefore
+     * be called outside of a transaction.
+     *
+     * Nothing is sent if the handler was completed, or even folded into its report, since the caller last saw it pending.
+     */
     public void deliver() throws MessagingException {
-        LocalEmailMessageDispatchReport report = getReport();
+        Outgoing outgoing;
         try {
-            MimeMessage message = mimeMessage();
-            Transport.send(message);
-            report.setDeliveredCount(report.getDeliveredCount() + message.getAllRecipients().length);
-        } catch (SendFailedException e) {
-            if (e.getValidSentAddresses() != null) {
-                report.setDeliveredCount(report.getDeliveredCount() + e.getValidSentAddresses().length);
+            outgoing = prepare();
+        } catch (MessagingException | RuntimeException e) {
+            Outgoing unprepared = unprepared();
+            if (unprepared != null) {
+                failed(unprepared);
             }
-            if (e.getInvalidAddresses() != null) {
-                report.setFailedCount(report.getFailedCount() + e.getInvalidAddresses().length);
-                for (Address failed : e.getInvalidAddresses()) {
-                    EmailBlacklist.getInstance().addFailedAddress(failed.toString());
-                }
-            }
-            if (e.getValidUnsentAddresses() != null) {
-                resend(e.getValidUnsentAddresses());
+            throw e;
+        }
+        if (outgoing == null) {
+            return;
+        }
+        MimeMessage message = outgoing.message;
+        DeliveryRateLimiter limiter = DeliveryRateLimiter.getInstance();
+        Address[] sent, invalid = null, unsent = null;
+        limiter.acquire(outgoing.sender, outgoing.recipients, outgoing.priority);
+        long start = System.nanoTime();
+        try {
+            SmtpTransportPool.get(session()).send(message, outgoing.priority);
+            sent = message.getAllRecipients();
+            limiter.succeeded();
+        } catch (SendFailedException e) {
+            limiter.failed(e);
+            sent = e.getValidSentAddresses();
+            invalid = e.getInvalidAddresses();
+            unsent = e.getValidUnsentAddresses();
+        } catch (MessagingException e) {
+            DeliveryMetrics.SMTP_SEND.recordSince(start);
+            limiter.failed(e);
+            failed(outgoing);
+            throw e;
+        }
+        DeliveryMetrics.SMTP_SEND.recordSince(start);
+        boolean retried = record(sent, invalid, unsent);
+        DeliveryMetrics.DELIVERED.increment(count(sent));
+        DeliveryMetrics.FAILED.increment(count(invalid));
+        (retried ? DeliveryMetrics.RETRIED : DeliveryMetrics.FAILED).increment(count(unsent));
+        MessagingBacklog.recipientsResolved(outgoing.report, count(sent) + count(invalid) + (retried ? 0 : count(unsent)));
+        MessagingBacklog.delivered(count(sent));
+    }
+
+    // Failures to build or send the message as a whole follow the same policy: retried later, or given up on
+    private void failed(Outgoing outgoing) {
+        if (postpone()) {
+            DeliveryMetrics.RETRIED.increment(outgoing.recipients);
+        } else {
+            DeliveryMetrics.FAILED.increment(outgoing.recipients);
+            MessagingBacklog.recipientsResolved(outgoing.report, outgoing.recipients);
+        }
+    }
+
+    private static int count(Address[] addresses) {
+        return addresses != null ? addresses.length : 0;
+    }
+
+    private static final class Outgoing {
+        private final MimeMessage message;
+        private final String sender;
+        private final String report;
+        private final int recipients;
+        private final boolean priority;
+
+        private Outgoing(MimeMessage message, String sender, String report, int recipients, boolean priority) {
+            this.message = message;
+            this.sender = sender;
+            this.report = report;
+            this.recipients = recipients;
+            this.priority = priority;
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private Outgoing prepare() throws MessagingException {
+        if (getReport() == null || isCompleted()) {
+            return null;
+        }
+        MimeMessage message = mimeMessage();
+        Message source = getReport().getMessage();
+        return new Outgoing(message, source.getSender().getExternalId(), getReport().getExternalId(),
+                message.getAllRecipients().length, source.getPriority().isHigh());
+    }
+
+    // What is known of a message that could not be built
+    @Atomic(mode = TxMode.READ)
+    private Outgoing unprepared() {
+        if (getReport() == null || isCompleted()) {
+            return null;
+        }
+        return new Outgoing(null, null, getReport().getExternalId(), (int) getAddresses().count(), false);
+    }
+
+    /*XXX The outcome is kept in the handler itself rather than added to the report counters or the blacklist, so that handlers
+     * never write to a shared object and can be recorded concurrently. The report aggregates them when needed, and folds the
+     * failed addresses into the blacklist once the handler is completed.
+     * Returns whether the unsent addresses, if any, were scheduled for another attempt. */
+    @Atomic(mode = TxMode.WRITE)
+    boolean record(Address[] sent, Address[] invalid, Address[] unsent) {
+        setDeliveredCount(sent != null ? sent.length : 0);
+        if (invalid != null) {
+            setFailedCount(invalid.length);
+            addFailedAddresses(Stream.of(invalid).map(Address::toString));
+        }
+        boolean retried = false;
+        if (unsent != null && unsent.length > 0) {
+            if (isLastAttempt()) {
+                setFailedCount(getFailedCount() + unsent.length);
+                addFailedAddresses(Stream.of(unsent).map(Address::toString));
+            } else {
+                resend(unsent);
+                retried = true;
             }
         }
-        delete();
+        setCompleted(new DateTime());
+        return retried;
+    }
+
+    /**
+     * Schedules this handler to be attempted again later, or gives up on all of its addresses if it was its last attempt, in
+     * which case they are blacklisted as failed, as are the addresses given up on by {@link #record}.
+     *
+     * @return whether the handler was scheduled for another attempt
+     */
+    @Atomic(mode = TxMode.WRITE)
+    boolean postpone() {
+        if (isLastAttempt()) {
+            setFailedCount((int) getAddresses().count());
+            addFailedAddresses(getAddresses());
+            setCompleted(new DateTime());
+            return false;
+        }
+        setAttempts(getAttempts() + 1);
+        setNotBefore(retryTime(getAttempts()));
+        return true;
+    }
+
+    private boolean isLastAttempt() {
+        return getAttempts() + 1 >= MAX_ATTEMPTS;
+    }
+
+    // Exponential backoff with jitter, so that handlers failing together are not all retried together
+    private static DateTime retryTime(int attempts) {
+        return new DateTime().plus(jitter(retryDelay(attempts, RETRY_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS)));
+    }
+
+    /**
+     * @return the delay before the given attempt, starting at the base delay and doubling with each attempt up to the maximum
+     */
+    static long retryDelay(int attempts, long baseMillis, long maxMillis) {
+        return Math.min(maxMillis, baseMillis << Math.min(attempts - 1, 30));
+    }
+
+    // Somewhere between half of the given delay and all of it
+    static long jitter(long delay) {
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @return whether this handler may be attempted at the given time
+     */
+    public boolean isDue(DateTime when) {
+        DateTime notBefore = getNotBefore();
+        return notBefore == null || !notBefore.isAfter(when);
+    }
+
+    private void addFailedAddresses(Stream<String> addresses) {
+        setFailedAddresses(Stream.concat(getFailedAddressStream(), addresses).distinct().collect(Collectors.joining(",")));
+    }
+
+    /**
+     * @return the addresses given up on, which are to be blacklisted
+     */
+    Stream<String> getFailedAddressStream() {
+        return MessagingSystem.Util.toEmailSet(getFailedAddresses()).stream();
+    }
+
+    /*XXX A retry handler carries on the attempts of the handler whose unsent addresses it took over, so only handlers that did
+     * not pass addresses on count their attempts, which then cover those of every handler before them. */
+    /**
+     * @return the attempts made after the first one by this handler and those it took addresses over from, or 0 if it passed some
+     *         of its addresses on to a retry handler
+     */
+    int getRetries() {
+        return getDeliveredCount() + getFailedCount() < getAddresses().count() ? 0 : getAttempts();
+    }
+
+    Stream<String> getAddresses() {
+        return Stream.of(getToAddresses(), getCcAddresses(), getBccAddresses())
+                .flatMap(addresses -> MessagingSystem.Util.toEmailSet(addresses).stream());
+    }
+
+    public boolean isCompleted() {
+        return getCompleted() != null;
     }
 
     private void resend(Address[] validUnsentAddresses) {
@@ -265,8 +411,11 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
                         return RecipientType.BCC;
                     }
                 }));
-        getReport().addHandler(new MimeMessageHandler(getLocale(), unsent.get(RecipientType.TO), unsent.get(RecipientType.CC),
-                unsent.get(RecipientType.BCC)));
+        MimeMessageHandler retry = new MimeMessageHandler(getLocale(), unsent.get(RecipientType.TO), unsent.get(RecipientType.CC),
+                unsent.get(RecipientType.BCC));
+        retry.setAttempts(getAttempts() + 1);
+        retry.setNotBefore(retryTime(retry.getAttempts()));
+        getReport().addHandler(retry);
     }
 
     public void delete() {
@@ -0,0 +1,169 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.fenixedu.commons.i18n.LocalizedString;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the encoded headers and body shared by every handler of a report in a given locale, so that a message is rendered once
+ * per locale rather than once per handler. Entries are evicted once the report finishes delivery, or after being unused for a
+ * while if that never happens in this node.
+ *
+ * When a spool directory is configured, rendered messages are kept in the {@link MessageSpool} instead, and are written there as
+ * soon as the report is dispatched.
+ */
+final class RenderedMessageCache {
+    private static final Logger logger = LoggerFactory.getLogger(RenderedMessageCache.class);
+
+    private static final long MAX_BYTES =
+            Math.max(1, EmailDispatchConfiguration.getConfiguration().mailSenderRenderCacheMegabytes()) * 1024L * 1024L;
+
+    private static final Cache<String, byte[]> RENDERED = CacheBuilder.newBuilder().maximumWeight(MAX_BYTES)
+            .weigher((String key, byte[] rendered) -> rendered.length).expireAfterAccess(1, TimeUnit.HOURS).build();
+
+    private RenderedMessageCache() {
+    }
+
+    /**
+     * Must be called within a transaction if the message is not rendered yet.
+     *
+     * @return a {@link javax.mail.internet.SharedInputStream} over the encoded message, without recipients nor Message-ID
+     */
+    static InputStream open(LocalEmailMessageDispatchReport report, Locale locale) throws MessagingException {
+        String key = key(report, locale);
+        if (MessageSpool.isEnabled()) {
+            try {
+                InputStream spooled = MessageSpool.open(key);
+                return spooled != null ? spooled : MessageSpool.write(key, render(report.getMessage(), locale));
+            } catch (IOException e) {
+                logger.warn("Error reading spooled message {}, rendering it in memory", key, e);
+            }
+        }
+        try {
+            return new SharedByteArrayInputStream(RENDERED.get(key, () -> render(report.getMessage(), locale)));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Error rendering message", (Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Writes the message to the spool, if enabled, ahead of delivery. Must be called within a transaction.
+     */
+    static void spool(LocalEmailMessageDispatchReport report, Locale locale) {
+        if (MessageSpool.isEnabled()) {
+            String key = key(report, locale);
+            try {
+                MessageSpool.write(key, render(report.getMessage(), locale));
+            } catch (MessagingException | IOException e) {
+                logger.warn("Error spooling message {}, it will be rendered on delivery", key, e);
+            }
+        }
+    }
+
+    static void evict(LocalEmailMessageDispatchReport report) {
+        String prefix = report.getExternalId() + "_";
+        RENDERED.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+        if (MessageSpool.isEnabled()) {
+            MessageSpool.delete(prefix);
+        }
+    }
+
+    private static String key(LocalEmailMessageDispatchReport report, Locale locale) {
+        return report.getExternalId() + "_" + locale.toLanguageTag();
+    }
+
+    private static byte[] render(Message message, Locale locale) throws MessagingException, IOException {
+        long start = System.nanoTime();
+        MimeMessage mimeMessage = new MimeMessage(MimeMessageHandler.session());
+
+        mimeMessage.setFrom(new InternetAddress(getFrom(message.getSender())));
+
+        String[] languages = { locale.toLanguageTag() };
+        mimeMessage.setContentLanguage(languages);
+
+        mimeMessage.setSubject(getContent(message.getSubject(), locale));
+
+        String replyTo = message.getReplyTo();
+        if (!Strings.isNullOrEmpty(replyTo)) {
+            Address[] replyTos = { new InternetAddress(replyTo) };
+            mimeMessage.setReplyTo(replyTos);
+        }
+
+        final MimeMultipart mimeMultipart = new MimeMultipart();
+
+        final String htmlBody = getContent(message.getHtmlBody(), locale);
+        if (htmlBody != null && !htmlBody.trim().isEmpty()) {
+            final BodyPart bodyPart = new MimeBodyPart();
+            bodyPart.setContent(htmlBody, "text/html");
+            mimeMultipart.addBodyPart(bodyPart);
+        }
+
+        final String textBody = getContent(message.getTextBody(), locale);
+        if (textBody != null && !textBody.trim().isEmpty()) {
+            final BodyPart bodyPart = new MimeBodyPart();
+            bodyPart.setText(textBody);
+            mimeMultipart.addBodyPart(bodyPart);
+        }
+
+        mimeMessage.setContent(mimeMultipart);
+        mimeMessage.saveChanges();
+        // Message-ID is stamped by each handler
+        mimeMessage.removeHeader("Message-ID");
+        mimeMessage.setHeader("Date", formatDate(message.getCreated().getMillis()));
+
+        ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+        mimeMessage.writeTo(rendered);
+        DeliveryMetrics.RENDERING.recordSince(start);
+        return rendered.toByteArray();
+    }
+
+    private static String getFrom(Sender sender) {
+        String name = sender.getName();
+        String from = sender.getAddress();
+        return Strings.isNullOrEmpty(name) ? from : name.replace(',', ' ').trim() + " <" + from + ">";
+    }
+
+    private static String getContent(LocalizedString ls, Locale l) {
+        if (ls != null) {
+            String s = ls.getContent(l);
+            if (s == null) {
+                return ls.getContent();
+            }
+            return s;
+        }
+        return null;
+    }
+
+    private static String formatDate(final long millis) {
+        return new SimpleDateFormat("E, d MMM yyyy HH:mm:ss Z", Locale.US).format(new Date(millis));
+    }
+}
@@ -0,0 +1,212 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+
+/**
+ * Addresses skipped by dispatch: those blacklisted as invalid, and those that failed more deliveries than configured. They are
+ * kept in memory as an exact set fronted by a Bloom filter, so that the address of nearly every recipient, which is not
+ * suppressed, is told apart from a few bits.
+ *
+ * The index is built from the {@link EmailBlacklist} when first needed, and updated as this node blacklists addresses, once the
+ * blacklist changes are committed. The blacklist is a single JSON document rather than entries of its own, so the changes of
+ * other nodes cannot be applied one by one: they are only picked up when the email task parses the whole blacklist again, which
+ * it does every few minutes. Hooking blacklist writes instead would cover this node alone.
+ *
+ * The rebuild reads the blacklist as of the task's transaction, which may predate changes this node committed since. Those are
+ * carried over from the index being replaced, until the blacklist read by a later rebuild reflects them.
+ */
+public final class SuppressionIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SuppressionIndex.class);
+
+    private static final ConfigurationProperties CONFIG = EmailDispatchConfiguration.getConfiguration();
+    private static final boolean ENABLED = CONFIG.mailSenderSuppression();
+    private static final int MAX_FAILURES = CONFIG.mailSenderSuppressionMaxFailures();
+    private static final long REBUILD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final class Bloom {
+        private static final int HASHES = 7;
+        private final AtomicLongArray words;
+        private final int bits;
+
+        // About 10 bits per address, for a false positive rate of around 1% until twice as many addresses are added
+        Bloom(int expected) {
+            this.words = new AtomicLongArray(Math.max(16, (expected * 10 + 63) / 64));
+            this.bits = words.length() * 64;
+        }
+
+        void put(String email) {
+            int h1 = email.hashCode(), h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bits);
+                long mask = 1L << bit, word;
+                do {
+                    word = words.get(bit >>> 6);
+                } while ((word & mask) == 0 && !words.compareAndSet(bit >>> 6, word, word | mask));
+            }
+        }
+
+        boolean mightContain(String email) {
+            int h1 = email.hashCode(), h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bits);
+                if ((words.get(bit >>> 6) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h | 1;
+        }
+    }
+
+    private static final class Index {
+        private final Bloom bloom;
+        private final Set<String> suppressed;
+        private final Multiset<String> failures;
+        // Registered by this node since the index was built, to be carried over by the next rebuild if it does not reflect them
+        private final Set<String> invalids = ConcurrentHashMap.newKeySet();
+        private final Multiset<String> failed = ConcurrentHashMultiset.create();
+        private final long built = System.currentTimeMillis();
+
+        private Index(Set<String> suppressed, Multiset<String> failures) {
+            this.bloom = new Bloom(2 * suppressed.size());
+            this.suppressed = ConcurrentHashMap.newKeySet(suppressed.size());
+            this.failures = ConcurrentHashMultiset.create(failures);
+            suppressed.forEach(this::suppress);
+        }
+
+        private void suppress(String email) {
+            if (suppressed.add(email)) {
+                bloom.put(email);
+            }
+        }
+
+        private void invalid(String email) {
+            invalids.add(email);
+            suppress(email);
+        }
+
+        private void failed(String email, int times) {
+            failed.add(email, times);
+            if (failures.add(email, times) + times > MAX_FAILURES) {
+                suppress(email);
+            }
+        }
+
+        /**
+         * Registers again what this node registered on the given index and is not reflected by this one.
+         */
+        private void carryOver(Index previous) {
+            previous.invalids.stream().filter(email -> !suppressed.contains(email)).forEach(this::invalid);
+            previous.failed.entrySet().forEach(entry -> {
+                int missing = previous.failures.count(entry.getElement()) - failures.count(entry.getElement());
+                if (missing > 0) {
+                    failed(entry.getElement(), Math.min(missing, entry.getCount()));
+                }
+            });
+        }
+    }
+
+    private static volatile Index index = null;
+
+    private SuppressionIndex() {
+    }
+
+    /**
+     * Must be called within a transaction if the index is not built yet.
+     */
+    static boolean isSuppressed(String email) {
+        if (!ENABLED) {
+            return false;
+        }
+        Index index = index();
+        return index.bloom.mightContain(email) && index.suppressed.contains(email);
+    }
+
+    /**
+     * Registers a committed blacklist entry of an address found to be invalid.
+     */
+    static void invalid(String email) {
+        Index index = SuppressionIndex.index;
+        if (index != null) {
+            index.invalid(email);
+        }
+    }
+
+    /**
+     * Registers a committed blacklist entry of an address whose delivery failed.
+     */
+    static void failed(String email) {
+        Index index = SuppressionIndex.index;
+        if (index != null) {
+            index.failed(email, 1);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the blacklist if it was built a while ago, so that it reflects the blacklist changes of other
+     * nodes, keeping the changes of this node the blacklist does not reflect yet. Must be called within a transaction.
+     */
+    public static void refresh() {
+        refresh(REBUILD_INTERVAL_MILLIS, () -> {
+        });
+    }
+
+    /**
+     * @param built run once the blacklist is read and before the rebuilt index replaces the current one
+     */
+    static void refresh(long intervalMillis, Runnable built) {
+        Index current = index;
+        if (ENABLED && current != null && System.currentTimeMillis() - current.built >= intervalMillis) {
+            Index rebuilt = build();
+            built.run();
+            // Swapped first, so that registrations racing the carry over land on one index or the other
+            index = rebuilt;
+            rebuilt.carryOver(current);
+        }
+    }
+
+    private static Index index() {
+        Index current = index;
+        if (current == null) {
+            synchronized (SuppressionIndex.class) {
+                current = index;
+                if (current == null) {
+                    current = index = build();
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Index build() {
+        EmailBlacklist blacklist = MessagingSystem.getInstance().getBlacklist();
+        if (blacklist == null) {
+            return new Index(ConcurrentHashMap.newKeySet(), ConcurrentHashMultiset.create());
+        }
+        Set<String> suppressed = blacklist.getInvalidEmails();
+        Multiset<String> failures = blacklist.getFailures();
+        failures.elementSet().stream().filter(email -> failures.count(email) > MAX_FAILURES).forEach(suppressed::add);
+        logger.debug("Built suppression index of {} addresses", suppressed.size());
+        return new Index(suppressed, failures);
+    }
+}
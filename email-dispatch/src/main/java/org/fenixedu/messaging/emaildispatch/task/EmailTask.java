@@ -24,15 +24,27 @@
  */
 package org.fenixedu.messaging.emaildispatch.task;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import org.fenixedu.bennu.scheduler.CronTask;
 import org.fenixedu.bennu.scheduler.annotation.Task;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDeliveryEngine;
 import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.domain.SuppressionIndex;
+import org.fenixedu.messaging.emaildispatch.transport.SmtpTransportPool;
 
 @Task(englishTitle = "Email Sender", readOnly = true)
 public class EmailTask extends CronTask {
     @Override
     public void runTask() throws Exception {
-        MessagingSystem.getInstance().getUnfinishedReportsSet().forEach(LocalEmailMessageDispatchReport::deliver);
+        long snapshot = System.currentTimeMillis();
+        Set<LocalEmailMessageDispatchReport> reports = new HashSet<>(MessagingSystem.getInstance().getUnfinishedReportsSet());
+        MessagingBacklog.resyncReports(reports, snapshot);
+        EmailDeliveryEngine.getInstance().deliver(reports);
+        SuppressionIndex.refresh();
+        SmtpTransportPool.evictIdleAll();
     }
 }
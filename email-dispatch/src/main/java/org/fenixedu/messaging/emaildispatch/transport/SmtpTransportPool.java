@@ -0,0 +1,201 @@
+package org.fenixedu.messaging.emaildispatch.transport;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a bounded number of connected SMTP transports per relay, so that consecutive messages reuse the same SMTP session
+ * instead of paying for connection setup (EHLO, STARTTLS, QUIT) on every send.
+ *
+ * A few more sessions are reserved for high priority messages, which take a shared session when one is free and otherwise
+ * only wait for the reserved ones, so that they are never left waiting for bulk messages to release the shared sessions.
+ */
+public class SmtpTransportPool {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+    private static final Map<String, SmtpTransportPool> POOLS = new ConcurrentHashMap<>();
+
+    private final Session session;
+    private final String relay;
+    private final Semaphore permits, priorityPermits;
+    private final int reserved;
+    private final Deque<PooledTransport> idle = new ArrayDeque<>();
+    private final long maxIdleMillis, checkIdleMillis;
+    private final int maxMessages;
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private Semaphore permit;
+        private long lastUsed = System.currentTimeMillis();
+        private int sent = 0;
+        private boolean suspect = false;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
+    protected SmtpTransportPool(Session session, String relay) {
+        ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+        this.session = session;
+        this.relay = relay;
+        this.permits = new Semaphore(Math.max(1, conf.mailSenderPoolSize()), true);
+        this.reserved = Math.max(0, conf.mailSenderPoolPrioritySize());
+        this.priorityPermits = new Semaphore(reserved, true);
+        this.maxIdleMillis = conf.mailSenderPoolIdleSeconds() * 1000L;
+        this.checkIdleMillis = conf.mailSenderPoolCheckSeconds() * 1000L;
+        this.maxMessages = conf.mailSenderPoolMaxMessages();
+    }
+
+    public static SmtpTransportPool get(Session session) {
+        return POOLS.computeIfAbsent(relay(session), relay -> new SmtpTransportPool(session, relay));
+    }
+
+    private static String relay(Session session) {
+        return session.getProperty("mail.smtp.host") + ":" + session.getProperty("mail.smtp.port");
+    }
+
+    public String getRelay() {
+        return relay;
+    }
+
+    public void send(MimeMessage message) throws MessagingException {
+        send(message, false);
+    }
+
+    /**
+     * @param priority whether the message may use the sessions reserved for high priority messages
+     */
+    public void send(MimeMessage message, boolean priority) throws MessagingException {
+        message.saveChanges();
+        Address[] recipients = message.getAllRecipients();
+        PooledTransport pooled = borrow(priority);
+        try {
+            pooled.transport.sendMessage(message, recipients);
+            release(pooled);
+        } catch (SendFailedException e) {
+            // The relay refused some addresses but the session itself is likely still usable, check it before reusing.
+            pooled.suspect = true;
+            release(pooled);
+            throw e;
+        } catch (MessagingException | RuntimeException e) {
+            invalidate(pooled);
+            throw e;
+        }
+    }
+
+    private Semaphore acquire(boolean priority) {
+        if (!priority || reserved == 0) {
+            permits.acquireUninterruptibly();
+            return permits;
+        }
+        if (permits.tryAcquire()) {
+            return permits;
+        }
+        priorityPermits.acquireUninterruptibly();
+        return priorityPermits;
+    }
+
+    private PooledTransport borrow(boolean priority) throws MessagingException {
+        Semaphore permit = acquire(priority);
+        try {
+            PooledTransport pooled;
+            while ((pooled = poll()) != null) {
+                long idleTime = System.currentTimeMillis() - pooled.lastUsed;
+                if (idleTime > maxIdleMillis) {
+                    close(pooled);
+                } else if ((pooled.suspect || idleTime > checkIdleMillis) && !pooled.transport.isConnected()) {
+                    close(pooled);
+                } else {
+                    pooled.suspect = false;
+                    pooled.permit = permit;
+                    return pooled;
+                }
+            }
+            Transport transport = session.getTransport("smtp");
+            transport.connect();
+            logger.debug("Opened SMTP connection to {}", relay);
+            pooled = new PooledTransport(transport);
+            pooled.permit = permit;
+            return pooled;
+        } catch (MessagingException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    private synchronized PooledTransport poll() {
+        return idle.pollFirst();
+    }
+
+    private void release(PooledTransport pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        pooled.sent++;
+        if (maxMessages > 0 && pooled.sent >= maxMessages) {
+            close(pooled);
+        } else {
+            synchronized (this) {
+                idle.addFirst(pooled);
+            }
+        }
+        pooled.permit.release();
+    }
+
+    private void invalidate(PooledTransport pooled) {
+        close(pooled);
+        pooled.permit.release();
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the configured time.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<PooledTransport> i = idle.iterator(); i.hasNext();) {
+                PooledTransport pooled = i.next();
+                if (now - pooled.lastUsed > maxIdleMillis) {
+                    i.remove();
+                    close(pooled);
+                }
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        idle.forEach(this::close);
+        idle.clear();
+    }
+
+    public static void evictIdleAll() {
+        POOLS.values().forEach(SmtpTransportPool::evictIdle);
+    }
+
+    public static void shutdownAll() {
+        POOLS.values().forEach(SmtpTransportPool::shutdown);
+        POOLS.clear();
+    }
+
+    private void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Error closing SMTP connection to {}", relay, e);
+        }
+    }
+}
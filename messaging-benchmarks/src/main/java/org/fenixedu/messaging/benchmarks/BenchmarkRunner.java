@@ -0,0 +1,21 @@
+package org.fenixedu.messaging.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, always adding the GC profiler so that every result is reported both as
+ * operations per second and as bytes allocated per operation ({@code gc.alloc.rate.norm}).
+ *
+ * Usage: {@code java -jar target/benchmarks.jar [JMH options] [benchmark regexp]}, after building with {@code -Pbenchmarks}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
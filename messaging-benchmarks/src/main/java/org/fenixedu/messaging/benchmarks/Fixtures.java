@@ -0,0 +1,93 @@
+package org.fenixedu.messaging.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.domain.UserProfile;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.Message.MessageBuilder;
+import org.fenixedu.messaging.core.domain.Sender;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Synthetic domain state for the benchmarks, created in the in-memory backend of each benchmark fork.
+ */
+public final class Fixtures {
+    public static final Locale[] LOCALES = { Locale.ENGLISH, new Locale("pt", "PT"), Locale.FRENCH };
+
+    private static int users = 0, senders = 0;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Creates the given number of users, spread evenly over the given number of groups and over the first {@code localeCount}
+     * locales of {@link #LOCALES}.
+     */
+    @Atomic(mode = TxMode.WRITE)
+    public static List<Group> groups(int userCount, int groupCount, int localeCount) {
+        List<List<User>> members = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < userCount; i++) {
+            members.get(i % groupCount).add(user(LOCALES[i % localeCount]));
+        }
+        return members.stream().map(group -> Group.users(group.toArray(new User[group.size()]))).collect(Collectors.toList());
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    public static User user(Locale locale) {
+        String username = "bench" + users++;
+        return new User(username, new UserProfile(username, username, username, username + "@example.com", locale));
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    public static Sender sender() {
+        String address = "sender" + senders++ + "@example.com";
+        return Sender.from(address).as("Benchmark").members(Group.anyone()).recipients(Group.anyone()).build();
+    }
+
+    /**
+     * Sends a message to the given groups with a subject, text and html body in each of the first {@code localeCount} locales
+     * of {@link #LOCALES}.
+     */
+    public static Message message(Sender sender, int localeCount, Group... tos) {
+        authenticate();
+        MessageBuilder builder = Message.from(sender).preferredLocale(LOCALES[0]).to(tos);
+        for (int i = 0; i < localeCount; i++) {
+            Locale locale = LOCALES[i];
+            builder.content("Benchmark " + locale, "Plain text body in " + locale + ".\n\nRegards,\nBenchmark",
+                    "<p>Html body in <b>" + locale + "</b>.</p><p>Regards,<br>Benchmark</p>", locale);
+        }
+        return builder.send();
+    }
+
+    /**
+     * Messages record their creator, so a user must be authenticated before any is sent.
+     */
+    public static void authenticate() {
+        if (Authenticate.getUser() == null) {
+            Authenticate.mock(user(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @return addresses of the form {@code prefixN@example.com}, with every {@code invalidEvery}th one malformed, or none if 0
+     */
+    public static List<String> addresses(String prefix, int count, int invalidEvery) {
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean invalid = invalidEvery > 0 && i % invalidEvery == invalidEvery - 1;
+            addresses.add(invalid ? prefix + i + "@@example..com" : prefix + i + "@example.com");
+        }
+        return addresses;
+    }
+}
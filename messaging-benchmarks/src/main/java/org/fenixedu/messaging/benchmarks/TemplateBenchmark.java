@@ -0,0 +1,88 @@
+package org.fenixedu.messaging.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.commons.i18n.LocalizedString;
+import org.fenixedu.messaging.core.domain.MessageTemplate;
+import org.fenixedu.messaging.core.template.DeclareMessageTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Compilation of a template's subject and bodies with Pebble, as done for every message sent from a template. Declared without a
+ * bundle, so that the declaration itself is the template content.
+ */
+@DeclareMessageTemplate(id = TemplateBenchmark.TEMPLATE, subject = "Report for {{ name }}",
+        text = "Dear {{ name }},\n{% for item in items %}- {{ item.title }}: {{ item.count }}\n{% endfor %}Regards",
+        html = "<p>Dear {{ name }},</p><ul>{% for item in items %}<li>{{ item.title | upper }}: {{ item.count }}</li>"
+                + "{% endfor %}</ul><p>Regards</p>")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+    static final String TEMPLATE = "org.fenixedu.messaging.benchmarks.template";
+
+    /**
+     * Number of elements iterated by the template bodies.
+     */
+    @Param({ "0", "10", "1000" })
+    public int itemCount;
+
+    private MessageTemplate template;
+    private final Map<String, Object> context = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        MessageTemplate.declare(TemplateBenchmark.class.getAnnotation(DeclareMessageTemplate.class));
+        MessageTemplate.reifyDeclarations();
+        template = template();
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < itemCount; i++) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("title", "item " + i);
+            item.put("count", i);
+            items.add(item);
+        }
+        context.put("name", "Benchmark");
+        context.put("items", items);
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static MessageTemplate template() {
+        return MessageTemplate.get(TEMPLATE);
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public LocalizedString subject() {
+        return template.getCompiledSubject(context);
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public void compile(Blackhole bh) {
+        bh.consume(template.getCompiledSubject(context));
+        bh.consume(template.getCompiledTextBody(context));
+        bh.consume(template.getCompiledHtmlBody(context));
+    }
+}
@@ -0,0 +1,61 @@
+package org.fenixedu.messaging.benchmarks;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Address helpers applied to every recipient of every message: validation, and conversion between address sets and the
+ * comma separated lists stored in handlers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int addressCount;
+
+    private List<String> addresses;
+    private String emailList;
+
+    @Setup
+    public void setup() {
+        addresses = Fixtures.addresses("user", addressCount, 10);
+        emailList = MessagingSystem.Util.toEmailListString(addresses);
+    }
+
+    @Benchmark
+    public void isValidEmail(Blackhole bh) {
+        for (String address : addresses) {
+            bh.consume(MessagingSystem.Util.isValidEmail(address));
+        }
+    }
+
+    @Benchmark
+    public Set<String> toEmailSet() {
+        return MessagingSystem.Util.toEmailSet(emailList);
+    }
+
+    @Benchmark
+    public String toEmailListString() {
+        return MessagingSystem.Util.toEmailListString(addresses);
+    }
+}
@@ -0,0 +1,55 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Email validation against the {@link javax.mail.internet.InternetAddress} validation it replaced. That both reach the same
+ * verdict is checked by EmailValidatorTest, in the messaging-test module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailValidatorBenchmark {
+
+    @Param({ "0", "10" })
+    public int invalidEvery;
+
+    private List<String> addresses;
+
+    @Setup
+    public void setup() {
+        addresses = Fixtures.addresses("user", 1000, invalidEvery);
+    }
+
+    @Benchmark
+    public void validator(Blackhole bh) {
+        for (String address : addresses) {
+            bh.consume(EmailValidator.isValid(address));
+        }
+    }
+
+    @Benchmark
+    public void internetAddress(Blackhole bh) {
+        for (String address : addresses) {
+            bh.consume(EmailValidator.validateInternetAddress(address));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.Collections;
+import java.util.Locale;
+
+import org.fenixedu.commons.i18n.LocalizedString;
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.joda.time.DateTime;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Senders holding large numbers of messages, created directly rather than sent so that populating them takes seconds rather
+ * than minutes. Lives in the domain package to reach the protected slots set by {@link Message.MessageBuilder#send()}.
+ */
+final class MessageFixtures {
+    private static final int BATCH_SIZE = 10000;
+    private static final long SPREAD_MILLIS = 365L * 24 * 60 * 60 * 1000;
+
+    private MessageFixtures() {
+    }
+
+    /**
+     * Creates a sender with the given number of messages, created over the last year. Sent messages are given a finished
+     * dispatch report, as the storage policy only prunes those.
+     */
+    static Sender sender(int messageCount, boolean sent) {
+        Fixtures.authenticate();
+        Sender sender = Fixtures.sender();
+        DateTime now = new DateTime();
+        for (int offset = 0; offset < messageCount; offset += BATCH_SIZE) {
+            populate(sender, offset, Math.min(offset + BATCH_SIZE, messageCount), messageCount, now, sent);
+        }
+        return sender;
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void populate(Sender sender, int from, int to, int total, DateTime now, boolean sent) {
+        for (int i = from; i < to; i++) {
+            Message message = new Message();
+            message.setSender(sender);
+            message.setCreated(now.minus(i * (SPREAD_MILLIS / total)));
+            message.setPreferredLocale(Locale.ENGLISH);
+            message.setPriority(MessagePriority.NORMAL);
+            message.setSubject(new LocalizedString(Locale.ENGLISH, "Message " + i));
+            message.setTextBody(new LocalizedString(Locale.ENGLISH, "Body of message " + i));
+            message.setHtmlBody(new LocalizedString());
+            if (sent) {
+                LocalEmailMessageDispatchReport report = new LocalEmailMessageDispatchReport(Collections.emptySet(), 1, 0);
+                report.setDeliveredCount(1);
+                message.setDispatchReport(report);
+                message.setMessagingSystemFromPendingDispatch(null);
+                report.finishDelivery();
+            }
+        }
+    }
+}
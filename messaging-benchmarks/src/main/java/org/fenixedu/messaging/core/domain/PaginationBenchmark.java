@@ -0,0 +1,56 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.core.ui.PaginationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ui.ExtendedModelMap;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Pagination of a sender's messages, as done by every request for the sender's page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PaginationBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int messageCount;
+
+    /**
+     * Page requested, 0 being the last one.
+     */
+    @Param({ "1", "0" })
+    public int page;
+
+    private Sender sender;
+
+    @Setup
+    public void setup() {
+        sender = MessageFixtures.sender(messageCount, false);
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public List<Message> paginate() {
+        return PaginationUtils.paginate(new ExtendedModelMap(), "messaging/senders/" + sender.getExternalId(), "messages",
+                sender.getMessageSet(), 10, page);
+    }
+}
@@ -0,0 +1,65 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Pruning of a sender's sent messages by its storage policy, as done for every sender on each run of the message task. Each
+ * prune runs in a transaction that is rolled back, so that every invocation prunes the same messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PruningBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int messageCount;
+
+    /**
+     * Serialized storage policy: keep the latest 100, those of the last 30 days, or both.
+     */
+    @Param({ "Q100", "P30D", "P30D,Q100" })
+    public String policy;
+
+    private Sender sender;
+
+    @Setup
+    public void setup() {
+        sender = MessageFixtures.sender(messageCount, true);
+        setPolicy(sender, MessageStoragePolicy.internalize(policy));
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void setPolicy(Sender sender, MessageStoragePolicy policy) {
+        sender.setPolicy(policy);
+    }
+
+    @Benchmark
+    public int prune() throws Exception {
+        FenixFramework.getTransactionManager().begin();
+        try {
+            sender.pruneMessages();
+            return sender.getMessageSet().size();
+        } finally {
+            FenixFramework.getTransactionManager().rollback();
+        }
+    }
+}
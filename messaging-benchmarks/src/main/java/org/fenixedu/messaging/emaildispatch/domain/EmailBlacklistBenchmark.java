@@ -0,0 +1,66 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Queries over a blacklist log of the given size, a fifth of it invalid addresses and the rest failures of addresses that failed
+ * between one and five times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailBlacklistBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int entryCount;
+
+    private EmailBlacklist blacklist;
+
+    @Setup
+    @Atomic(mode = TxMode.WRITE)
+    public void setup() {
+        blacklist = EmailBlacklist.getInstance();
+        int invalidCount = entryCount / 5;
+        Fixtures.addresses("invalid", invalidCount, 0).forEach(blacklist::addInvalidAddress);
+        int failedCount = entryCount - invalidCount;
+        List<String> failed = Fixtures.addresses("failed", failedCount / 3 + 1, 0);
+        for (int i = 0, k = 0; i < failedCount; k++) {
+            for (int times = 0; times <= k % 5 && i < failedCount; times++, i++) {
+                blacklist.addFailedAddress(failed.get(k % failed.size()));
+            }
+        }
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public Set<String> invalidEmails() {
+        return blacklist.getInvalidEmails();
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public Set<String> failedEmails() {
+        return blacklist.getFailedEmails(3);
+    }
+}
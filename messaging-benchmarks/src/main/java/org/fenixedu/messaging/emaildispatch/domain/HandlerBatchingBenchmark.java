@@ -0,0 +1,89 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message.RecipientType;
+
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Splitting of recipients into handlers, as done by {@code MimeMessageHandler.bestEffortCreate}, for several mixes of tos, ccs
+ * and bccs. {@code batch} measures the window alone, as run by the recipient resolver outside of any write transaction, while
+ * {@code create} also creates the handlers, in a transaction that is rolled back so that the domain does not grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBatchingBenchmark {
+
+    /**
+     * Number of tos, ccs and bccs, separated by colons.
+     */
+    @Param({ "1:0:0", "40:10:0", "10:10:1000", "0:0:10000" })
+    public String mix;
+
+    @Param({ "1", "3" })
+    public int localeCount;
+
+    private final Map<Locale, Set<String>> tos = new HashMap<>(), ccs = new HashMap<>(), bccs = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        String[] counts = mix.split(":");
+        byLocale(tos, "to", Integer.parseInt(counts[0]));
+        byLocale(ccs, "cc", Integer.parseInt(counts[1]));
+        byLocale(bccs, "bcc", Integer.parseInt(counts[2]));
+    }
+
+    private void byLocale(Map<Locale, Set<String>> recipients, String prefix, int count) {
+        int i = 0;
+        for (String address : Fixtures.addresses(prefix, count, 0)) {
+            recipients.computeIfAbsent(Fixtures.LOCALES[i++ % localeCount], l -> new HashSet<>()).add(address);
+        }
+    }
+
+    @Benchmark
+    public void batch(Blackhole bh) {
+        for (int i = 0; i < localeCount; i++) {
+            Locale locale = Fixtures.LOCALES[i];
+            MimeMessageHandler.Batcher batcher = new MimeMessageHandler.Batcher(locale, bh::consume);
+            batcher.addAll(RecipientType.TO, tos.get(locale));
+            batcher.addAll(RecipientType.CC, ccs.get(locale));
+            batcher.addAll(RecipientType.BCC, bccs.get(locale));
+            batcher.flush();
+        }
+    }
+
+    @Benchmark
+    public Collection<MimeMessageHandler> create() throws Exception {
+        FenixFramework.getTransactionManager().begin();
+        try {
+            return MimeMessageHandler.create(tos, ccs, bccs);
+        } finally {
+            FenixFramework.getTransactionManager().rollback();
+        }
+    }
+}
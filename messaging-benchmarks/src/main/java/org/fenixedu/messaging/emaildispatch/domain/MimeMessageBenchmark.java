@@ -0,0 +1,80 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.fenixedu.messaging.core.domain.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Construction of a handler's {@link MimeMessage}: {@code cached} stamps the recipients onto an already rendered message, as
+ * every handler but the first of a report and locale does, {@code rendered} renders it first and {@code written} also encodes
+ * it as it would be sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeMessageBenchmark {
+
+    @Param({ "1", "50" })
+    public int recipientCount;
+
+    private LocalEmailMessageDispatchReport report;
+    private MimeMessageHandler handler;
+
+    @Setup
+    public void setup() {
+        Message message = Fixtures.message(Fixtures.sender(), 1);
+        createHandler(message);
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private void createHandler(Message message) {
+        report = new LocalEmailMessageDispatchReport(message);
+        handler = new MimeMessageHandler(Fixtures.LOCALES[0], Fixtures.addresses("to", recipientCount, 0), null, null);
+        report.addHandler(handler);
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public MimeMessage cached() throws MessagingException {
+        return handler.mimeMessage();
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public MimeMessage rendered() throws MessagingException {
+        RenderedMessageCache.evict(report);
+        return handler.mimeMessage();
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public MimeMessage written() throws Exception {
+        MimeMessage message = handler.mimeMessage();
+        message.saveChanges();
+        message.writeTo(ByteStreams.nullOutputStream());
+        return message;
+    }
+}
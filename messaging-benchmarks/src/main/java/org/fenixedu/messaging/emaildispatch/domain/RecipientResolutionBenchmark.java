@@ -0,0 +1,69 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.messaging.benchmarks.Fixtures;
+import org.fenixedu.messaging.core.domain.ContactDirectory;
+import org.fenixedu.messaging.core.domain.MembershipCache;
+import org.fenixedu.messaging.core.domain.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Resolution of a message's recipient groups into per locale handler envelopes, which took the place of
+ * {@code LocalEmailMessageDispatchReport.emailsByMessageLocale} when dispatch became streaming.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecipientResolutionBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int userCount;
+
+    @Param({ "1", "3" })
+    public int localeCount;
+
+    // Whether the members of the groups and their contacts are cached, as when other messages were recently sent to them
+    @Param({ "true", "false" })
+    public boolean cached;
+
+    private Message message;
+
+    @Setup
+    public void setup() {
+        Group[] groups = Fixtures.groups(userCount, 10, localeCount).toArray(new Group[0]);
+        // Content in one locale fewer than the users', so that some of them fall back to the preferred locale
+        message = Fixtures.message(Fixtures.sender(), Math.max(1, localeCount - 1), groups);
+    }
+
+    @Benchmark
+    @Atomic(mode = TxMode.READ)
+    public int resolve(Blackhole bh) {
+        if (!cached) {
+            MembershipCache.invalidateAll();
+            ContactDirectory.invalidateAll();
+        }
+        EmailRecipientResolver resolver = new EmailRecipientResolver(message, Collections.emptySet(), bh::consume);
+        resolver.resolve();
+        return resolver.getValidCount();
+    }
+}
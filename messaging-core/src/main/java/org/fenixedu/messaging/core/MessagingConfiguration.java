@@ -0,0 +1,30 @@
+package org.fenixedu.messaging.core;
+
+import org.fenixedu.commons.configuration.ConfigurationInvocationHandler;
+import org.fenixedu.commons.configuration.ConfigurationManager;
+import org.fenixedu.commons.configuration.ConfigurationProperty;
+
+public class MessagingConfiguration {
+    @ConfigurationManager(description = "Messaging Configurations")
+    public interface ConfigurationProperties {
+        @ConfigurationProperty(key = "messaging.membership.cache.seconds", defaultValue = "300",
+                description = "Time after which the members of a recipient group are expanded again rather than taken from the cache. Membership changes are not tracked, so unless the snapshot of a group is invalidated, users removed from it may still be sent its messages for this long. Zero disables the cache.")
+        public Integer membershipCacheSeconds();
+
+        @ConfigurationProperty(key = "messaging.membership.cache.members", defaultValue = "1000000",
+                description = "Maximum number of group members kept in the cache, over all groups. The least recently used groups are evicted first.")
+        public Integer membershipCacheMembers();
+
+        @ConfigurationProperty(key = "messaging.contacts.cache.seconds", defaultValue = "300",
+                description = "Time after which the email address and preferred locale of a recipient are read again from the user profile. Until then, changes to the profile are not seen by messages being dispatched, unless the caches are invalidated from the operations endpoint.")
+        public Integer contactsCacheSeconds();
+
+        @ConfigurationProperty(key = "messaging.contacts.cache.users", defaultValue = "1000000",
+                description = "Maximum number of users whose email address and preferred locale are kept in the cache.")
+        public Integer contactsCacheUsers();
+    }
+
+    public static ConfigurationProperties getConfiguration() {
+        return ConfigurationInvocationHandler.getConfiguration(ConfigurationProperties.class);
+    }
+}
@@ -4,5 +4,19 @@ import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessageDispatchReport;
 
 public interface MessageDispatcher {
+    /**
+     * Dispatches a message. Unless the dispatcher {@link #managesTransactions() manages its own transactions}, this is called
+     * within a write transaction, which also marks the message as dispatched.
+     *
+     * @return the report of the dispatched message, or null if the message could not be dispatched yet
+     */
     public MessageDispatchReport dispatch(Message message);
+
+    /**
+     * @return whether the dispatcher opens the transactions it needs by itself, possibly several for a single message, in which
+     *         case {@link #dispatch(Message)} is called outside of any transaction
+     */
+    public default boolean managesTransactions() {
+        return false;
+    }
 }
@@ -0,0 +1,143 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.domain.UserProfile;
+import org.fenixedu.messaging.core.MessagingConfiguration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Keeps the email address and preferred locale of message recipients, by user, so that expanding a recipient group does not load
+ * the profile of each of its members again. Addresses are interned and locales kept as an index into a table of the locales seen
+ * so far, as the same few locales are shared by every user.
+ *
+ * Each address in use is also given an id, so that sets of addresses can be kept as bitmaps: the number of the first user with
+ * a cached contact found to hold it, taken from the low half of the user's OID. Ids are only kept while that contact is cached,
+ * and the same address may be given another id after that, but an id never stands for two addresses at once, as each user holds
+ * a single address.
+ *
+ * Contacts are read from the user profile the first time they are needed, and read again once they expire. Bennu does not tell
+ * when a profile changes, so a new address or locale is only used once the old contact expires, unless all contacts are
+ * invalidated first.
+ */
+public final class ContactDirectory {
+
+    public static final class Contact {
+        private final String email;
+        private final int user;
+        private final short locale;
+
+        private Contact(String email, int user, short locale) {
+            this.email = email;
+            this.user = user;
+            this.locale = locale;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        /**
+         * @return the preferred locale of the user, or null if none is set
+         */
+        public Locale getLocale() {
+            return locale(locale);
+        }
+    }
+
+    // Users without a profile, which are never recipients, are kept as this contact rather than looked up again
+    private static final Contact NO_PROFILE = new Contact(null, -1, (short) -1);
+
+    private static final Cache<String, Contact> CONTACTS =
+            CacheBuilder.newBuilder().maximumSize(MessagingConfiguration.getConfiguration().contactsCacheUsers())
+                    .expireAfterWrite(MessagingConfiguration.getConfiguration().contactsCacheSeconds(), TimeUnit.SECONDS)
+                    .removalListener((RemovalNotification<String, Contact> removal) -> release(removal.getValue())).build();
+
+    private static final Interner<String> EMAILS = Interners.newWeakInterner();
+    // Ids of the addresses held by cached contacts, by interned address, compared by identity
+    private static final ConcurrentMap<String, Integer> ADDRESS_IDS = new MapMaker().weakKeys().makeMap();
+
+    private static final List<Locale> LOCALES = new CopyOnWriteArrayList<>();
+    private static final Map<Locale, Short> LOCALE_INDEXES = new HashMap<>();
+
+    private ContactDirectory() {
+    }
+
+    /**
+     * Must be called within a transaction if the contact of the user is not known yet.
+     *
+     * @return the contact of the user, or null if the user has no profile
+     */
+    public static Contact contact(User user) {
+        String id = user.getExternalId();
+        Contact contact = CONTACTS.getIfPresent(id);
+        if (contact == null) {
+            contact = read(user);
+            CONTACTS.put(id, contact);
+        }
+        return contact != NO_PROFILE ? contact : null;
+    }
+
+    /**
+     * @return the id of the address of the given contact, which must have one
+     */
+    public static int addressId(Contact contact) {
+        return ADDRESS_IDS.computeIfAbsent(contact.email, email -> contact.user);
+    }
+
+    /**
+     * @return the id of the given address, or -1 if no cached contact holds it
+     */
+    public static int addressId(String email) {
+        Integer id = ADDRESS_IDS.get(EMAILS.intern(email));
+        return id != null ? id : -1;
+    }
+
+    public static void invalidateAll() {
+        CONTACTS.invalidateAll();
+    }
+
+    private static Contact read(User user) {
+        UserProfile profile = user.getProfile();
+        if (profile == null) {
+            return NO_PROFILE;
+        }
+        String email = profile.getEmail();
+        // External ids are the OIDs of objects, whose low half numbers them among the objects of their class
+        int number = (int) Long.parseLong(user.getExternalId());
+        return new Contact(email != null ? EMAILS.intern(email) : null, number, localeIndex(profile.getPreferredLocale()));
+    }
+
+    private static void release(Contact contact) {
+        if (contact != null && contact.email != null) {
+            ADDRESS_IDS.remove(contact.email, contact.user);
+        }
+    }
+
+    private static synchronized short localeIndex(Locale locale) {
+        if (locale == null) {
+            return -1;
+        }
+        return LOCALE_INDEXES.computeIfAbsent(locale, l -> {
+            LOCALES.add(l);
+            return (short) (LOCALES.size() - 1);
+        });
+    }
+
+    private static Locale locale(short index) {
+        return index >= 0 ? LOCALES.get(index) : null;
+    }
+}
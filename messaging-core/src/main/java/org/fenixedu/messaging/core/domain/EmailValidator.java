@@ -0,0 +1,101 @@
+package org.fenixedu.messaging.core.domain;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides whether an email address is valid exactly as {@link InternetAddress#validate()} does, without building an
+ * {@link InternetAddress} nor throwing for the plain addresses that make up nearly every recipient list.
+ *
+ * Addresses of the form <code>local@domain</code>, with an unquoted dot-atom local part and a domain of letters, digits and
+ * inner hyphens, are accepted by a single pass over their characters. Anything else, from names and comments to quoted local
+ * parts, domain literals and invalid addresses, is left to {@link InternetAddress}, and its verdict kept in a bounded cache.
+ */
+public final class EmailValidator {
+    private static final int MAX_CACHED_VERDICTS = 10000;
+
+    private static final String ATEXT_SPECIALS = "!#$%&'*+-/=?^_`{|}~";
+
+    private static final Cache<String, Boolean> VERDICTS = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_VERDICTS).build();
+
+    private EmailValidator() {
+    }
+
+    public static boolean isValid(String email) {
+        if (email == null) {
+            return false;
+        }
+        if (isPlainAddress(email)) {
+            return true;
+        }
+        Boolean verdict = VERDICTS.getIfPresent(email);
+        if (verdict == null) {
+            verdict = validateInternetAddress(email);
+            VERDICTS.put(email, verdict);
+        }
+        return verdict;
+    }
+
+    /**
+     * @return whether the address is a plain <code>local@domain</code> address, all of which {@link InternetAddress} accepts.
+     *         Other addresses may or may not be valid.
+     */
+    static boolean isPlainAddress(String email) {
+        int at = email.indexOf('@');
+        return at > 0 && isDotAtom(email, 0, at) && isDomain(email, at + 1, email.length());
+    }
+
+    private static boolean isDotAtom(String s, int start, int end) {
+        boolean dot = true;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (dot) {
+                    return false;
+                }
+                dot = true;
+            } else if (isAlphanumeric(c) || ATEXT_SPECIALS.indexOf(c) >= 0) {
+                dot = false;
+            } else {
+                return false;
+            }
+        }
+        return !dot;
+    }
+
+    private static boolean isDomain(String s, int start, int end) {
+        char last = '.';
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (last == '.' || last == '-') {
+                    return false;
+                }
+            } else if (c == '-') {
+                if (last == '.') {
+                    return false;
+                }
+            } else if (!isAlphanumeric(c)) {
+                return false;
+            }
+            last = c;
+        }
+        return isAlphanumeric(last);
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9';
+    }
+
+    static boolean validateInternetAddress(String email) {
+        try {
+            new InternetAddress(email).validate();
+            return true;
+        } catch (AddressException ex) {
+            return false;
+        }
+    }
+}
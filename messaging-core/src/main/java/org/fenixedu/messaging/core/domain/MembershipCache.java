@@ -0,0 +1,75 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.messaging.core.MessagingConfiguration;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Keeps a snapshot of the members of each recipient group, shared by every dispatch, message view and recipient listing that
+ * expands it, as several messages are often sent to the same large groups within a short while. Snapshots expire after a
+ * configurable time, and the least recently used are evicted once too many members are kept.
+ *
+ * Bennu does not tell when the members of a group change, so until its snapshot expires a group keeps the members it had when
+ * expanded: a user removed from a group may still be sent its messages, and a user added may miss them, for as long as the
+ * configured time. Code that changes the members of a group, or knows them to have changed, should drop its snapshot with
+ * {@link #invalidate(Group)}. Snapshots can also be dropped, for one group or for all, from the operations page.
+ */
+public final class MembershipCache {
+
+    private static final LoadingCache<PersistentGroup, User[]> MEMBERS = CacheBuilder.newBuilder()
+            .maximumWeight(MessagingConfiguration.getConfiguration().membershipCacheMembers())
+            .weigher((PersistentGroup group, User[] members) -> members.length)
+            .expireAfterWrite(MessagingConfiguration.getConfiguration().membershipCacheSeconds(), TimeUnit.SECONDS)
+            .build(CacheLoader.from(group -> group.getMembers().toArray(User[]::new)));
+
+    private MembershipCache() {
+    }
+
+    /**
+     * Must be called within a transaction if the members of the group are not cached yet.
+     */
+    public static Stream<User> members(PersistentGroup group) {
+        return Arrays.stream(MEMBERS.getUnchecked(group));
+    }
+
+    public static Stream<User> members(Collection<PersistentGroup> groups) {
+        return groups.stream().flatMap(MembershipCache::members);
+    }
+
+    /**
+     * @return the number of members of the group if they are cached, without expanding it otherwise
+     */
+    public static Optional<Integer> cachedSize(PersistentGroup group) {
+        return Optional.ofNullable(MEMBERS.getIfPresent(group)).map(members -> members.length);
+    }
+
+    public static void invalidate(PersistentGroup group) {
+        MEMBERS.invalidate(group);
+    }
+
+    /**
+     * Drops the snapshot of the given group, found among the cached ones so that no persistent group is created for it.
+     */
+    @Atomic(mode = TxMode.READ)
+    public static void invalidate(Group group) {
+        MEMBERS.asMap().keySet().removeIf(persistent -> persistent.toGroup().equals(group));
+    }
+
+    public static void invalidateAll() {
+        MEMBERS.invalidateAll();
+    }
+}
@@ -29,6 +29,7 @@ import pt.ist.fenixframework.Atomic.TxMode;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
@@ -42,6 +43,8 @@ import org.fenixedu.bennu.core.domain.User;
 import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
 import org.fenixedu.bennu.core.groups.Group;
 import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.bennu.core.signals.DomainObjectEvent;
+import org.fenixedu.bennu.core.signals.Signal;
 import org.fenixedu.commons.i18n.I18N;
 import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.messaging.core.domain.MessagingSystem.Util;
@@ -61,6 +64,11 @@ import static org.fenixedu.messaging.core.domain.MessagingSystem.Util.toEmailSet
  * @author Luis Cruz
  */
 public final class Message extends Message_Base implements Comparable<Message> {
+    /**
+     * Emitted with a {@link DomainObjectEvent} when a message is sent. Handlers registered without a transaction are only
+     * notified once the message is committed.
+     */
+    public static final String SIGNAL_SENT = "fenixedu.messaging.message.sent";
 
     public static final class TemplateMessageBuilder {
 
@@ -120,6 +128,7 @@ public final class Message extends Message_Base implements Comparable<Message> {
         private Locale preferredLocale = I18N.getLocale();
         private Set<Group> tos = new HashSet<>(), ccs = new HashSet<>(), bccs = new HashSet<>();
         private Set<String> singleBccs = new HashSet<>();
+        private MessagePriority priority = null;
 
         protected MessageBuilder(Sender sender) {
             from(sender);
@@ -287,12 +296,28 @@ public final class Message extends Message_Base implements Comparable<Message> {
             return this;
         }
 
+        public MessageBuilder priority(MessagePriority priority) {
+            this.priority = requireNonNull(priority);
+            return this;
+        }
+
+        /*XXX When not given, the priority is guessed: messages only to single addresses are assumed to be notifications someone
+         * is waiting for, while messages to groups may have any number of recipients, whoever the sender. */
+        private MessagePriority derivePriority() {
+            if (priority != null) {
+                return priority;
+            }
+            boolean groups = !tos.isEmpty() || !ccs.isEmpty() || !bccs.isEmpty();
+            return groups ? MessagePriority.NORMAL : MessagePriority.HIGH;
+        }
+
         @Atomic(mode = TxMode.WRITE)
         public Message send() {
             Message message = new Message();
             message.setSender(sender);
             message.setReplyTo(replyTo);
             message.setPreferredLocale(preferredLocale);
+            message.setPriority(derivePriority());
             tos.stream().map(Group::toPersistentGroup).forEach(message::addTo);
             ccs.stream().map(Group::toPersistentGroup).forEach(message::addCc);
             bccs.stream().map(Group::toPersistentGroup).forEach(message::addBcc);
@@ -308,6 +333,7 @@ public final class Message extends Message_Base implements Comparable<Message> {
             message.setSubject(subject);
             message.setTextBody(textBody);
             message.setHtmlBody(htmlBody);
+            Signal.emit(SIGNAL_SENT, new DomainObjectEvent<>(message));
             return message;
         }
     }
@@ -383,6 +409,12 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return super.getPreferredLocale();
     }
 
+    @Override
+    public MessagePriority getPriority() {
+        MessagePriority priority = super.getPriority();
+        return priority != null ? priority : MessagePriority.NORMAL;
+    }
+
     public Set<Group> getToGroups() {
         return getToSet().stream().map(PersistentGroup::toGroup).collect(Collectors.toSet());
     }
@@ -391,6 +423,10 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return toEmailSet(getToSet());
     }
 
+    public Stream<User> getToMembers() {
+        return MembershipCache.members(getToSet());
+    }
+
     public Set<Group> getCcGroups() {
         return getCcSet().stream().map(PersistentGroup::toGroup).collect(Collectors.toSet());
     }
@@ -399,6 +435,10 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return toEmailSet(getCcSet());
     }
 
+    public Stream<User> getCcMembers() {
+        return MembershipCache.members(getCcSet());
+    }
+
     public Set<Group> getBccGroups() {
         return getBccSet().stream().map(PersistentGroup::toGroup).collect(Collectors.toSet());
     }
@@ -409,6 +449,21 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return bccs;
     }
 
+    public Stream<User> getBccMembers() {
+        return MembershipCache.members(getBccSet());
+    }
+
+    /**
+     * @return the number of members of each recipient group whose members are cached, by group expression. Groups that are not
+     *         cached are left out rather than expanded.
+     */
+    public Map<String, Integer> getGroupSizes() {
+        Map<String, Integer> sizes = new HashMap<>();
+        Stream.of(getToSet(), getCcSet(), getBccSet()).flatMap(Set::stream).forEach(group -> MembershipCache.cachedSize(group)
+                .ifPresent(size -> sizes.put(group.toGroup().getExpression(), size)));
+        return sizes;
+    }
+
     public Set<String> getSingleBccsSet() {
         return toEmailSet(getSingleBccs());
     }
@@ -418,6 +473,10 @@ public final class Message extends Message_Base implements Comparable<Message> {
                 .flatMap(c -> c.getLocales().stream()).collect(Collectors.toSet());
     }
 
+    public boolean isPendingDispatch() {
+        return getMessagingSystemFromPendingDispatch() != null;
+    }
+
     public DateTime getSent() {
         return getDispatchReport() != null ? getDispatchReport().getFinishedDelivery() : null;
     }
@@ -449,6 +508,12 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return getCreator().equals(Authenticate.getUser()) && getDispatchReport() == null;
     }
 
+    /**
+     * Orders messages by priority, then by age, oldest first.
+     */
+    public static final Comparator<Message> DISPATCH_ORDER =
+            Comparator.comparing(Message::getPriority).thenComparing(Message::getCreated).thenComparing(Message::getExternalId);
+
     @Override
     public int compareTo(Message message) {
         int c = -getCreated().compareTo(message.getCreated());
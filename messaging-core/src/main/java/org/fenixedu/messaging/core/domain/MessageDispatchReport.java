@@ -23,12 +23,58 @@ public abstract class MessageDispatchReport extends MessageDispatchReport_Base {
         return super.getStartedDelivery();
     }
 
+    /**
+     * Removes the message from the pending messages. Dispatchers that commit their work in several transactions should call this
+     * in the transaction that completes the dispatch.
+     */
+    protected void markDispatched() {
+        if (getMessage().isPendingDispatch()) {
+            getMessage().setMessagingSystemFromPendingDispatch(null);
+            setResolved(new DateTime());
+        }
+    }
+
+    /**
+     * Records a delivery that completed at the given time, widening the span between the first and last deliveries.
+     */
+    protected void delivered(DateTime when) {
+        if (getFirstDelivered() == null || when.isBefore(getFirstDelivered())) {
+            setFirstDelivered(when);
+        }
+        if (getLastDelivered() == null || when.isAfter(getLastDelivered())) {
+            setLastDelivered(when);
+        }
+    }
+
+    /*XXX Stage durations, in milliseconds, or null while the stage is not reached. Deliveries are measured from the end of the
+     * dispatch, so that the time spent waiting for delivery and delivering is told apart from the time spent resolving. */
+
+    public Long getQueuedMillis() {
+        return millis(getMessage().getCreated(), getStartedDelivery());
+    }
+
+    public Long getResolutionMillis() {
+        return millis(getStartedDelivery(), getResolved());
+    }
+
+    public Long getFirstDeliveryMillis() {
+        return millis(getResolved(), getFirstDelivered());
+    }
+
+    public Long getLastDeliveryMillis() {
+        return millis(getResolved(), getLastDelivered());
+    }
+
+    private static Long millis(DateTime from, DateTime to) {
+        return from != null && to != null ? Math.max(0, to.getMillis() - from.getMillis()) : null;
+    }
+
     public boolean isFinished() {
         return getTotalCount() == getResolvedCount();
     }
 
     public int getResolvedCount() {
-        return getFailedCount() + getInvalidCount() + getDeliveredCount();
+        return getFailedCount() + getInvalidCount() + getSuppressedCount() + getDeliveredCount();
     }
 
     @Atomic(mode = TxMode.WRITE)
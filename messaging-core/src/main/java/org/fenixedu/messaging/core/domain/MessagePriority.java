@@ -0,0 +1,13 @@
+package org.fenixedu.messaging.core.domain;
+
+/**
+ * Order in which messages are dispatched and delivered. Messages that someone is waiting for, such as notifications to a single
+ * person, should be {@link #HIGH}, so that they are not delayed by the backlog of bulk messages.
+ */
+public enum MessagePriority {
+    HIGH, NORMAL, LOW;
+
+    public boolean isHigh() {
+        return this == HIGH;
+    }
+}
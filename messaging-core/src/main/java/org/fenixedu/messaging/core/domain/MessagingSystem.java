@@ -30,21 +30,20 @@ import static org.fenixedu.messaging.core.bootstrap.MessagingSystemBootstrap.def
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
-
 import org.fenixedu.bennu.core.domain.Bennu;
-import org.fenixedu.bennu.core.domain.User;
-import org.fenixedu.bennu.core.domain.UserProfile;
 import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
 import org.fenixedu.bennu.core.groups.Group;
 import org.fenixedu.messaging.core.dispatch.MessageDispatcher;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics.Timer;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
@@ -59,6 +58,8 @@ import pt.ist.fenixframework.Atomic.TxMode;
 public class MessagingSystem extends MessagingSystem_Base {
     private static MessagingSystem instance = null;
     private static MessageDispatcher dispatcher = null;
+    private static final Timer DISPATCH =
+            MessagingMetrics.timer("messaging_dispatch_seconds", "Time dispatching a message until its report is returned");
 
     private MessagingSystem() {
         super();
@@ -85,19 +86,45 @@ public class MessagingSystem extends MessagingSystem_Base {
         return instance;
     }
 
-    @Atomic(mode = TxMode.WRITE)
+    /**
+     * Dispatches a pending message. Dispatchers that manage their own transactions are free to split the work over several of
+     * them, so this method does not run in a single transaction of its own and must be called outside of any transaction. The
+     * message stops being pending once the dispatcher returns its report.
+     */
     public static MessageDispatchReport dispatch(Message message) {
         MessageDispatchReport report = null;
         if (dispatcher != null) {
-            report = dispatcher.dispatch(message);
+            long start = System.nanoTime();
+            report = dispatcher.managesTransactions() ? dispatchAndMark(message) : dispatchInTransaction(message);
             if (report != null) {
-                message.setMessagingSystemFromPendingDispatch(null);
-                message.setDispatchReport(report);
+                DISPATCH.recordSince(start);
+                MessagingBacklog.messageDispatched(message);
             }
         }
         return report;
     }
 
+    private static MessageDispatchReport dispatchAndMark(Message message) {
+        MessageDispatchReport report = dispatcher.dispatch(message);
+        if (report != null) {
+            dispatched(message, report);
+        }
+        return report;
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static MessageDispatchReport dispatchInTransaction(Message message) {
+        return dispatchAndMark(message);
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void dispatched(Message message, MessageDispatchReport report) {
+        if (message.getDispatchReport() != report) {
+            message.setDispatchReport(report);
+        }
+        report.markDispatched();
+    }
+
     public static MessageDispatcher getMessageDispatcher(MessageDispatcher dispatcher) {
         return MessagingSystem.dispatcher;
     }
@@ -111,6 +138,13 @@ public class MessagingSystem extends MessagingSystem_Base {
         return getInstance().getMessagePendingDispatchSet();
     }
 
+    /**
+     * @return the pending messages, higher priority ones first
+     */
+    public static List<Message> getPendingMessagesInDispatchOrder() {
+        return getPendingMessages().stream().sorted(Message.DISPATCH_ORDER).collect(Collectors.toList());
+    }
+
     public static Sender systemSender() {
         return getInstance().getSystemSender();
     }
@@ -121,20 +155,12 @@ public class MessagingSystem extends MessagingSystem_Base {
         private static final Joiner MAIL_LIST_JOINER = Joiner.on(",").skipNulls();
 
         public static boolean isValidEmail(final String email) {
-            if (email == null) {
-                return false;
-            }
-            try {
-                new InternetAddress(email).validate();
-                return true;
-            } catch (AddressException ex) {
-                return false;
-            }
+            return EmailValidator.isValid(email);
         }
 
         public static Set<String> toEmailSet(Collection<PersistentGroup> groups) {
-            return groups.stream().flatMap(g -> g.getMembers()).map(User::getProfile).filter(Objects::nonNull)
-                    .map(UserProfile::getEmail).filter(e -> !Strings.isNullOrEmpty(e)).collect(Collectors.toSet());
+            return MembershipCache.members(groups).map(ContactDirectory::contact).filter(Objects::nonNull)
+                    .map(ContactDirectory.Contact::getEmail).filter(e -> !Strings.isNullOrEmpty(e)).collect(Collectors.toSet());
         }
 
         public static Set<String> toEmailSet(String emails) {
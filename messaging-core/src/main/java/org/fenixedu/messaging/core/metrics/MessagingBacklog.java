@@ -0,0 +1,230 @@
+package org.fenixedu.messaging.core.metrics;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessageDispatchReport;
+import org.joda.time.DateTime;
+
+import com.google.gson.JsonObject;
+
+/**
+ * How far behind dispatch and delivery are, kept in memory as this node sends, dispatches and delivers messages, so that it can
+ * be polled without walking the domain. Every update is made once the change it reflects is committed.
+ *
+ * Changes made by other nodes are only picked up when the message and email tasks resync the backlog from the domain, which they
+ * do on each run from the messages and reports they load anyway. Until then, the backlog of each node is approximate.
+ */
+public final class MessagingBacklog {
+    private static final int RATE_WINDOW_SECONDS = 60;
+    // Task transactions start a little before their tasks can tell the time, so snapshots are taken as this much older
+    private static final long SNAPSHOT_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final class Pending implements Comparable<Pending> {
+        private final String id;
+        private final long created;
+        private final long registered = System.currentTimeMillis();
+
+        private Pending(String id, long created) {
+            this.id = id;
+            this.created = created;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int c = Long.compare(created, other.created);
+            return c != 0 ? c : id.compareTo(other.id);
+        }
+    }
+
+    private static final class Remaining {
+        private final String sender;
+        private final AtomicInteger recipients;
+        private final long registered = System.currentTimeMillis();
+
+        private Remaining(String sender, int recipients) {
+            this.sender = sender;
+            this.recipients = new AtomicInteger(recipients);
+        }
+    }
+
+    private static final Map<String, Pending> PENDING = new ConcurrentHashMap<>();
+    private static final NavigableSet<Pending> PENDING_BY_AGE = new ConcurrentSkipListSet<>();
+    private static final Map<String, Remaining> REMAINING = new ConcurrentHashMap<>();
+
+    // When messages were dispatched and reports finished by this node, so that a resync from an older snapshot skips them
+    private static final Map<String, Long> DISPATCHED = new HashMap<>(), FINISHED = new HashMap<>();
+
+    // Recipients delivered in each of the last seconds, indexed by second modulo the window
+    private static final long[] DELIVERED = new long[RATE_WINDOW_SECONDS], DELIVERED_AT = new long[RATE_WINDOW_SECONDS];
+
+    private static volatile DateTime pendingSynced = null, reportsSynced = null;
+
+    private MessagingBacklog() {
+    }
+
+    public static synchronized void messageSent(Message message) {
+        addPending(message.getExternalId(), System.currentTimeMillis());
+    }
+
+    public static synchronized void messageDispatched(Message message) {
+        removePending(message.getExternalId());
+        DISPATCHED.put(message.getExternalId(), System.currentTimeMillis());
+    }
+
+    /**
+     * Applies the pending messages of a snapshot of the domain taken at the given time. Messages sent or dispatched by this node
+     * since then are left as they are, as the snapshot may not reflect them. Must be called within a transaction.
+     */
+    public static synchronized void resyncPending(Collection<Message> messages, long snapshot) {
+        long since = snapshot - SNAPSHOT_MARGIN_MILLIS;
+        DISPATCHED.values().removeIf(dispatched -> dispatched < since);
+        Set<String> ids = messages.stream().map(Message::getExternalId).collect(Collectors.toSet());
+        PENDING.values().stream().filter(pending -> pending.registered < since && !ids.contains(pending.id))
+                .map(pending -> pending.id).collect(Collectors.toList()).forEach(MessagingBacklog::removePending);
+        messages.stream().filter(message -> !DISPATCHED.containsKey(message.getExternalId()))
+                .forEach(message -> addPending(message.getExternalId(), message.getCreated().getMillis()));
+        pendingSynced = new DateTime();
+    }
+
+    private static void addPending(String id, long created) {
+        Pending pending = new Pending(id, created);
+        if (PENDING.putIfAbsent(id, pending) == null) {
+            PENDING_BY_AGE.add(pending);
+        }
+    }
+
+    private static void removePending(String id) {
+        Pending pending = PENDING.remove(id);
+        if (pending != null) {
+            PENDING_BY_AGE.remove(pending);
+        }
+    }
+
+    /**
+     * Registers a dispatched report of a message from the given sender address, with the given number of recipients left to
+     * deliver to.
+     */
+    public static synchronized void reportQueued(String report, String sender, int recipients) {
+        REMAINING.put(report, new Remaining(sender, recipients));
+    }
+
+    /**
+     * Registers recipients of a report that were either delivered to or given up on.
+     */
+    public static void recipientsResolved(String report, int recipients) {
+        Remaining remaining = REMAINING.get(report);
+        if (remaining != null) {
+            remaining.recipients.updateAndGet(count -> Math.max(0, count - recipients));
+        }
+    }
+
+    public static synchronized void reportFinished(String report) {
+        REMAINING.remove(report);
+        FINISHED.put(report, System.currentTimeMillis());
+    }
+
+    /**
+     * Applies the unfinished reports of a snapshot of the domain taken at the given time. Reports queued or finished by this node
+     * since then are left as they are, as the snapshot may not reflect them. Must be called within a transaction.
+     */
+    public static synchronized void resyncReports(Collection<? extends MessageDispatchReport> reports, long snapshot) {
+        long since = snapshot - SNAPSHOT_MARGIN_MILLIS;
+        FINISHED.values().removeIf(finished -> finished < since);
+        Set<String> ids = reports.stream().map(MessageDispatchReport::getExternalId).collect(Collectors.toSet());
+        REMAINING.entrySet().removeIf(entry -> entry.getValue().registered < since && !ids.contains(entry.getKey()));
+        reports.stream().filter(report -> !FINISHED.containsKey(report.getExternalId())).forEach(report -> {
+            Remaining current = REMAINING.get(report.getExternalId());
+            if (current == null || current.registered < since) {
+                REMAINING.put(report.getExternalId(), new Remaining(report.getMessage().getSender().getAddress(),
+                        report.getTotalCount() - report.getResolvedCount()));
+            }
+        });
+        reportsSynced = new DateTime();
+    }
+
+    public static void delivered(int recipients) {
+        long second = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        int index = (int) (second % RATE_WINDOW_SECONDS);
+        synchronized (DELIVERED) {
+            if (DELIVERED_AT[index] != second) {
+                DELIVERED_AT[index] = second;
+                DELIVERED[index] = 0;
+            }
+            DELIVERED[index] += recipients;
+        }
+    }
+
+    /**
+     * @return the recipients delivered per second, over the last minute
+     */
+    public static double getDeliveryRate() {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long delivered = 0;
+        synchronized (DELIVERED) {
+            for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+                if (now - DELIVERED_AT[i] < RATE_WINDOW_SECONDS) {
+                    delivered += DELIVERED[i];
+                }
+            }
+        }
+        return delivered / (double) RATE_WINDOW_SECONDS;
+    }
+
+    public static int getPendingCount() {
+        return PENDING.size();
+    }
+
+    /**
+     * @return the age of the oldest pending message, in seconds, or 0 if none is pending
+     */
+    public static long getOldestPendingAge() {
+        Pending oldest = PENDING_BY_AGE.isEmpty() ? null : PENDING_BY_AGE.first();
+        return oldest == null ? 0 : TimeUnit.MILLISECONDS.toSeconds(Math.max(0, System.currentTimeMillis() - oldest.created));
+    }
+
+    public static int getUnfinishedReportCount() {
+        return REMAINING.size();
+    }
+
+    public static long getRemainingRecipients() {
+        return REMAINING.values().stream().mapToLong(remaining -> remaining.recipients.get()).sum();
+    }
+
+    /**
+     * @return the number of unfinished reports, by sender address
+     */
+    public static Map<String, Integer> getUnfinishedReportCountBySender() {
+        return REMAINING.values().stream().collect(Collectors.toMap(remaining -> remaining.sender, remaining -> 1, Integer::sum));
+    }
+
+    /**
+     * @return the number of recipients left in unfinished reports, by sender address
+     */
+    public static Map<String, Long> getRemainingRecipientsBySender() {
+        return REMAINING.values().stream().collect(
+                Collectors.toMap(remaining -> remaining.sender, remaining -> (long) remaining.recipients.get(), Long::sum));
+    }
+
+    public static JsonObject toJson() {
+        JsonObject backlog = new JsonObject();
+        backlog.addProperty("pendingMessages", getPendingCount());
+        backlog.addProperty("oldestPendingSeconds", getOldestPendingAge());
+        backlog.addProperty("unfinishedReports", getUnfinishedReportCount());
+        backlog.addProperty("remainingRecipients", getRemainingRecipients());
+        backlog.addProperty("deliveryRate", getDeliveryRate());
+        DateTime pending = pendingSynced, reports = reportsSynced;
+        backlog.addProperty("pendingSynced", pending != null ? pending.toString() : null);
+        backlog.addProperty("reportsSynced", reports != null ? reports.toString() : null);
+        return backlog;
+    }
+}
@@ -0,0 +1,314 @@
+package org.fenixedu.messaging.core.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the counters, timers and gauges of message dispatch and delivery. Metrics are exposed over JMX, as the attributes
+ * of the {@value #OBJECT_NAME} MBean, and as text in the Prometheus exposition format.
+ *
+ * Counters and timers are updated lock-free. Gauges are computed whenever they are read, so their suppliers should cache
+ * anything that is expensive to compute.
+ */
+public final class MessagingMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(MessagingMetrics.class);
+
+    public static final String OBJECT_NAME = "org.fenixedu.messaging:type=Metrics";
+
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+    private MessagingMetrics() {
+    }
+
+    public static Counter counter(String name, String help) {
+        return (Counter) METRICS.computeIfAbsent(name, n -> new Counter(n, help));
+    }
+
+    public static Timer timer(String name, String help) {
+        return (Timer) METRICS.computeIfAbsent(name, n -> new Timer(n, help));
+    }
+
+    /**
+     * Registers a gauge with one value per label value, such as one per sender, replacing any gauge of the same name.
+     */
+    public static void gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+        METRICS.put(name, new Gauge(name, help, label, values));
+    }
+
+    private static abstract class Metric {
+        protected final String name, help;
+
+        protected Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        protected abstract String type();
+
+        protected abstract void collect(List<Sample> samples);
+
+        protected void write(Writer writer) throws IOException {
+            List<Sample> samples = new ArrayList<>();
+            collect(samples);
+            write(writer, name, help, type(), samples);
+        }
+
+        protected static void write(Writer writer, String name, String help, String type, List<Sample> samples)
+                throws IOException {
+            writer.write("# HELP " + name + " " + help + "\n");
+            writer.write("# TYPE " + name + " " + type + "\n");
+            for (Sample sample : samples) {
+                writer.write(sample.name + " " + sample.value + "\n");
+            }
+        }
+    }
+
+    public static final class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment(long amount) {
+            if (amount > 0) {
+                count.add(amount);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        protected String type() {
+            return "counter";
+        }
+
+        @Override
+        protected void collect(List<Sample> samples) {
+            samples.add(new Sample(name, count.sum()));
+        }
+    }
+
+    /**
+     * Count, total and maximum of the durations recorded, in seconds. The maximum is not part of the Prometheus summary type, so
+     * it is written as a gauge of its own, named after the timer with a <code>_max</code> suffix.
+     */
+    public static final class Timer extends Metric {
+        private final LongAdder count = new LongAdder(), totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private Timer(String name, String help) {
+            super(name, help);
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        protected String type() {
+            return "summary";
+        }
+
+        @Override
+        protected void collect(List<Sample> samples) {
+            samples.add(new Sample(name + "_count", count.sum()));
+            samples.add(new Sample(name + "_sum", seconds(totalNanos.sum())));
+            samples.add(new Sample(name + "_max", seconds(maxNanos.get())));
+        }
+
+        @Override
+        protected void write(Writer writer) throws IOException {
+            List<Sample> samples = new ArrayList<>();
+            collect(samples);
+            write(writer, name, help, type(), samples.subList(0, 2));
+            write(writer, name + "_max", "Longest of the durations recorded by " + name, "gauge", samples.subList(2, 3));
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final String label;
+        private final Supplier<Map<String, ? extends Number>> values;
+
+        private Gauge(String name, String help, String label, Supplier<Map<String, ? extends Number>> values) {
+            super(name, help);
+            this.label = label;
+            this.values = values;
+        }
+
+        @Override
+        protected String type() {
+            return "gauge";
+        }
+
+        @Override
+        protected void collect(List<Sample> samples) {
+            try {
+                values.get().forEach((value, number) -> samples
+                        .add(new Sample(name + "{" + label + "=\"" + escape(value) + "\"}", number.doubleValue())));
+            } catch (RuntimeException e) {
+                logger.warn("Error computing gauge {}", name, e);
+            }
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    public static final class Sample {
+        private final String name;
+        private final double value;
+
+        private Sample(String name, double value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        /**
+         * @return the name of the metric, followed by its labels if any
+         */
+        public String getName() {
+            return name;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    public static List<Sample> samples() {
+        List<Sample> samples = new ArrayList<>();
+        METRICS.values().forEach(metric -> metric.collect(samples));
+        return samples;
+    }
+
+    /**
+     * @return the samples of the metrics the given sample names may belong to, sparing the others from being computed
+     */
+    private static List<Sample> samples(String... names) {
+        List<Sample> samples = new ArrayList<>();
+        METRICS.values().stream().filter(metric -> Stream.of(names).anyMatch(name -> name.startsWith(metric.name)))
+                .forEach(metric -> metric.collect(samples));
+        return samples;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public static void write(Writer writer) throws IOException {
+        for (Metric metric : METRICS.values()) {
+            metric.write(writer);
+        }
+    }
+
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            logger.warn("Error registering messaging metrics MBean", e);
+        }
+    }
+
+    public static synchronized void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Error unregistering messaging metrics MBean", e);
+        }
+    }
+
+    /*XXX Samples are exposed as read-only attributes named after the sample, labels included, so that gauges broken down by
+     * sender show up as they come and go without registering an MBean per sender. */
+    private static final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return samples(attribute).stream().filter(sample -> sample.name.equals(attribute)).map(Sample::getValue)
+                    .findFirst().orElseThrow(() -> new AttributeNotFoundException(attribute));
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            List<Sample> samples = samples(attributes);
+            for (String attribute : attributes) {
+                samples.stream().filter(sample -> sample.name.equals(attribute)).findFirst()
+                        .ifPresent(sample -> list.add(new Attribute(sample.name, sample.value)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Messaging metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = samples().stream()
+                    .map(sample -> new MBeanAttributeInfo(sample.name, Double.class.getName(), sample.name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(MessagingMetrics.class.getName(), "Messaging dispatch and delivery metrics", attributes, null,
+                    null, null);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.fenixedu.messaging.core.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.fenixedu.bennu.core.signals.DomainObjectEvent;
+import org.fenixedu.bennu.core.signals.Signal;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+
+import com.google.common.base.Suppliers;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Registers the messaging metrics MBean and the gauges of pending messages, broken down by sender address, and feeds sent
+ * messages to the backlog.
+ */
+@WebListener
+public class MessagingMetricsListener implements ServletContextListener {
+
+    private static final class Pending {
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final Map<String, Long> oldestAges = new HashMap<>();
+    }
+
+    // Both gauges are read together on every scrape, the snapshot spares them a second walk over the pending messages
+    private static final Supplier<Pending> PENDING =
+            Suppliers.memoizeWithExpiration(MessagingMetricsListener::pending, 1, TimeUnit.SECONDS);
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        MessagingMetrics.gauge("messaging_pending_messages", "Messages waiting to be dispatched", "sender",
+                () -> PENDING.get().counts);
+        MessagingMetrics.gauge("messaging_oldest_pending_seconds", "Age of the oldest message waiting to be dispatched",
+                "sender", () -> PENDING.get().oldestAges);
+        MessagingMetrics.registerMBean();
+        Signal.registerWithoutTransaction(Message.SIGNAL_SENT,
+                (DomainObjectEvent<Message> event) -> MessagingBacklog.messageSent(event.getInstance()));
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        MessagingMetrics.unregisterMBean();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static Pending pending() {
+        Pending pending = new Pending();
+        long now = System.currentTimeMillis();
+        for (Message message : MessagingSystem.getPendingMessages()) {
+            String sender = message.getSender().getAddress();
+            pending.counts.merge(sender, 1, Integer::sum);
+            pending.oldestAges.merge(sender, TimeUnit.MILLISECONDS.toSeconds(now - message.getCreated().getMillis()), Math::max);
+        }
+        return pending;
+    }
+}
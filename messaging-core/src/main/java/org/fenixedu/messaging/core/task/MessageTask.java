@@ -1,23 +1,48 @@
 package org.fenixedu.messaging.core.task;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
 import org.fenixedu.bennu.scheduler.CronTask;
 import org.fenixedu.bennu.scheduler.annotation.Task;
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessageDispatchReport;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
 import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
 
+/**
+ * Dispatches the pending messages concurrently, on a pool of threads shut down along with the application. Dispatching is
+ * mostly spent resolving recipients, which for different messages can be done concurrently.
+ *
+ * Whatever a dispatcher serializes among concurrent dispatches, such as the write transactions of the email dispatch jobs, is
+ * only serialized within this JVM. Dispatches running on other nodes at the same time may still conflict.
+ */
 @Task(englishTitle = "Message Task", readOnly = true)
 public class MessageTask extends CronTask {
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService executor = null;
+
     @Override
-    public void runTask() {
+    public void runTask() throws Exception {
+        long snapshot = System.currentTimeMillis();
+        List<Message> pending = MessagingSystem.getPendingMessagesInDispatchOrder();
+        MessagingBacklog.resyncPending(pending, snapshot);
+        ExecutorService executor = executor();
+        List<Future<Boolean>> dispatches =
+                pending.stream().map(message -> executor.submit(() -> dispatch(message))).collect(Collectors.toList());
         int dispatched = 0;
-        for (final Message message : MessagingSystem.getPendingMessages()) {
-            long start = System.currentTimeMillis();
-            MessageDispatchReport report = MessagingSystem.dispatch(message);
-            if (report != null) {
-                getLogger().info("Dispatched message: {} in {}ms for {} addresses", message.getExternalId(), System
-                        .currentTimeMillis() - start, report.getTotalCount());
+        for (Future<Boolean> dispatch : dispatches) {
+            if (dispatch.get()) {
                 dispatched++;
             }
         }
@@ -35,4 +60,41 @@ public class MessageTask extends CronTask {
         }
         taskLog("Pruned %d messages\n", pruned);
     }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS,
+                    new ThreadFactoryBuilder().setNameFormat("message-dispatch-%d").setDaemon(true).build());
+        }
+        return executor;
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /*XXX Runs outside of the task transaction, on a thread of the pool. Each dispatch resolves its message from a read-only
+     * snapshot of its own, leaving the dispatcher to commit the results. */
+    private boolean dispatch(Message message) {
+        try {
+            long start = System.currentTimeMillis();
+            MessageDispatchReport report = MessagingSystem.dispatch(message);
+            if (report != null) {
+                getLogger().info("Dispatched message: {} in {}ms for {} addresses", message.getExternalId(),
+                        System.currentTimeMillis() - start, getTotalCount(report));
+                return true;
+            }
+        } catch (RuntimeException e) {
+            getLogger().error("Error dispatching message: {}", message.getExternalId(), e);
+        }
+        return false;
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static int getTotalCount(MessageDispatchReport report) {
+        return report.getTotalCount();
+    }
 }
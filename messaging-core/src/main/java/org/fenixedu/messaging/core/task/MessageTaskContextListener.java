@@ -0,0 +1,21 @@
+package org.fenixedu.messaging.core.task;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Shuts down the threads the message task dispatches on, so that they do not outlive the application.
+ */
+@WebListener
+public class MessageTaskContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        MessageTask.shutdown();
+    }
+}
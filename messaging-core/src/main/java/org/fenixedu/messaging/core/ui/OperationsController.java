@@ -0,0 +1,64 @@
+package org.fenixedu.messaging.core.ui;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.bennu.spring.portal.SpringFunctionality;
+import org.fenixedu.messaging.core.domain.ContactDirectory;
+import org.fenixedu.messaging.core.domain.MembershipCache;
+import org.fenixedu.messaging.core.metrics.MessagingBacklog;
+import org.fenixedu.messaging.core.metrics.MessagingMetrics;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.view.RedirectView;
+
+@SpringFunctionality(app = MessagingController.class, title = "title.messaging.operations", accessGroup = "#managers")
+@RequestMapping("/messaging/operations")
+public class OperationsController {
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @RequestMapping(value = { "", "/" })
+    public RedirectView redirectToMetrics() {
+        return new RedirectView("/messaging/operations/metrics", true);
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public
+    @ResponseBody
+    ResponseEntity<String> metrics() throws IOException {
+        StringWriter writer = new StringWriter();
+        MessagingMetrics.write(writer);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, METRICS_CONTENT_TYPE);
+        return new ResponseEntity<String>(writer.toString(), headers, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/backlog", method = RequestMethod.GET)
+    public
+    @ResponseBody
+    ResponseEntity<String> backlog() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, JSON_CONTENT_TYPE);
+        return new ResponseEntity<String>(MessagingBacklog.toJson().toString(), headers, HttpStatus.OK);
+    }
+
+    @RequestMapping(value = "/membership/invalidate", method = RequestMethod.POST)
+    public
+    @ResponseBody
+    ResponseEntity<String> invalidateMembership(@RequestParam(value = "group", required = false) String group) {
+        if (group != null) {
+            MembershipCache.invalidate(Group.parse(group));
+        } else {
+            MembershipCache.invalidateAll();
+            ContactDirectory.invalidateAll();
+        }
+        return new ResponseEntity<String>(HttpStatus.NO_CONTENT);
+    }
+}
@@ -46,13 +46,15 @@ ${portal.toolkit()}
 				<spring:message code="label.message.status.queued"/>
 			</c:otherwise>
 			</c:choose>
-			<c:if test="${not empty message.dispatchReport.startedDelivery}">
+			<c:if test="${not empty message.dispatchReport.startedDelivery and message.dispatchReport.totalCount > 0}">
 			<c:set var="invalid" value="${message.dispatchReport.invalidCount}"/>
 			<c:set var="failed" value="${message.dispatchReport.failedCount}"/>
+			<c:set var="suppressed" value="${message.dispatchReport.suppressedCount}"/>
 			<c:set var="delivered" value="${message.dispatchReport.deliveredCount}"/>
 			<c:set var="total" value="${message.dispatchReport.totalCount}"/>
 			<c:set var="pInvalid" value="${100 *message.dispatchReport.invalidCount/total}"/>
 			<c:set var="pFailed" value="${100 *message.dispatchReport.failedCount/total}"/>
+			<c:set var="pSuppressed" value="${100 *message.dispatchReport.suppressedCount/total}"/>
 			<c:set var="pDelivered" value="${100 * message.dispatchReport.deliveredCount/total}"/>
 			<div class="progress" style="margin: 0;">
 				<div class="progress-bar progress-bar-danger" style="width: ${pFailed}%" data-toggle="tooltip" data-placement="bottom" title="${failed} failed messages">
@@ -61,6 +63,9 @@ ${portal.toolkit()}
 				<div class="progress-bar progress-bar-warning" style="width: ${pInvalid}%" data-toggle="tooltip" data-placement="bottom" title="${invalid} invalid messages">
 					<fmt:formatNumber type="number" maxFractionDigits="1" value="${pInvalid}"/>%
 				</div>
+				<div class="progress-bar progress-bar-info" style="width: ${pSuppressed}%" data-toggle="tooltip" data-placement="bottom" title="${suppressed} suppressed messages">
+					<fmt:formatNumber type="number" maxFractionDigits="1" value="${pSuppressed}"/>%
+				</div>
 				<div class="progress-bar progress-bar-success" style="width: ${pDelivered}%" data-toggle="tooltip" data-placement="bottom"  title="${delivered} delivered messages">
 					<fmt:formatNumber type="number" maxFractionDigits="1" value="${pDelivered}"/>%
 				</div>
@@ -71,6 +76,36 @@ ${portal.toolkit()}
 			</c:if>
 			</td>
 		</tr>
+		<c:if test="${not empty message.dispatchReport}">
+		<c:set var="dispatchReport" value="${message.dispatchReport}"/>
+		<tr>
+			<th class="col-md-2" scope="row">
+				<spring:message code="label.message.stages"/>
+			</th>
+			<td>
+				<dl class="dl-horizontal" style="margin: 0;">
+				<c:if test="${not empty dispatchReport.queuedMillis}">
+					<dt><spring:message code="label.message.stage.queued"/></dt>
+					<dd><fmt:formatNumber type="number" maxFractionDigits="1" value="${dispatchReport.queuedMillis / 1000}"/> s</dd>
+				</c:if>
+				<c:if test="${not empty dispatchReport.resolutionMillis}">
+					<dt><spring:message code="label.message.stage.resolution"/></dt>
+					<dd><fmt:formatNumber type="number" maxFractionDigits="1" value="${dispatchReport.resolutionMillis / 1000}"/> s</dd>
+				</c:if>
+				<c:if test="${not empty dispatchReport.firstDeliveryMillis}">
+					<dt><spring:message code="label.message.stage.delivery.first"/></dt>
+					<dd><fmt:formatNumber type="number" maxFractionDigits="1" value="${dispatchReport.firstDeliveryMillis / 1000}"/> s</dd>
+				</c:if>
+				<c:if test="${not empty dispatchReport.lastDeliveryMillis}">
+					<dt><spring:message code="label.message.stage.delivery.last"/></dt>
+					<dd><fmt:formatNumber type="number" maxFractionDigits="1" value="${dispatchReport.lastDeliveryMillis / 1000}"/> s</dd>
+				</c:if>
+					<dt><spring:message code="label.message.stage.retries"/></dt>
+					<dd>${dispatchReport.retries}</dd>
+				</dl>
+			</td>
+		</tr>
+		</c:if>
 		<tr>
 			<th class="col-md-2" scope="row">
 				<spring:message code="label.message.sender.name"/>
@@ -105,6 +140,7 @@ ${portal.toolkit()}
 				</td>
 			</tr>
 		</c:if>
+		<c:set var="groupSizes" value="${message.groupSizes}"/>
 		<c:if test="${not empty message.toGroups}">
 			<tr>
 				<th class="col-md-2" scope="row">
@@ -113,7 +149,7 @@ ${portal.toolkit()}
 				<td>
 					<div style="overflow-y:auto; max-height:85px; display:block;">
 					<c:forEach items="${sort:uniqueSort(message.toGroups)}" var="to">
-						<code style="display: inline-block; margin: 2px;">${to.presentationName}</code>
+						<code style="display: inline-block; margin: 2px;">${to.presentationName}<c:if test="${not empty groupSizes[to.expression]}"> <span class="badge">${groupSizes[to.expression]}</span></c:if></code>
 					</c:forEach>
 					</div>
 				</td>
@@ -127,7 +163,7 @@ ${portal.toolkit()}
 				<td>
 					<div style="overflow-y:auto; max-height:85px; display:block;">
 					<c:forEach items="${sort:uniqueSort(message.ccGroups)}" var="cc">
-						<code style="display: inline-block; margin: 2px;">${cc.presentationName}</code>
+						<code style="display: inline-block; margin: 2px;">${cc.presentationName}<c:if test="${not empty groupSizes[cc.expression]}"> <span class="badge">${groupSizes[cc.expression]}</span></c:if></code>
 					</c:forEach>
 					</div>
 				</td>
@@ -141,7 +177,7 @@ ${portal.toolkit()}
 				<td>
 					<div style="overflow-y:auto; max-height:85px; display:block;">
 					<c:forEach items="${sort:uniqueSort(message.bccGroups)}" var="bcc">
-						<code style="display: inline-block; margin: 2px;">${bcc.presentationName}</code>
+						<code style="display: inline-block; margin: 2px;">${bcc.presentationName}<c:if test="${not empty groupSizes[bcc.expression]}"> <span class="badge">${groupSizes[bcc.expression]}</span></c:if></code>
 					</c:forEach>
 					</div>
 				</td>
@@ -138,10 +138,12 @@
 				<spring:message code="label.message.status.dispatching"/>
 				<c:set var="invalid" value="${message.dispatchReport.invalidCount}"/>
 				<c:set var="failed" value="${message.dispatchReport.failedCount}"/>
+				<c:set var="suppressed" value="${message.dispatchReport.suppressedCount}"/>
 				<c:set var="delivered" value="${message.dispatchReport.deliveredCount}"/>
 				<c:set var="total" value="${message.dispatchReport.totalCount}"/>
 				<c:set var="pInvalid" value="${100 *message.dispatchReport.invalidCount/total}"/>
 				<c:set var="pFailed" value="${100 *message.dispatchReport.failedCount/total}"/>
+				<c:set var="pSuppressed" value="${100 *message.dispatchReport.suppressedCount/total}"/>
 				<c:set var="pDelivered" value="${100 * message.dispatchReport.deliveredCount/total}"/>
 				<div class="progress" style="margin: 0;">
 					<div class="progress-bar progress-bar-danger" style="width: ${pFailed}%" data-toggle="tooltip" data-placement="bottom" title="${failed} failed messages">
@@ -150,6 +152,9 @@
 					<div class="progress-bar progress-bar-warning" style="width: ${pInvalid}%" data-toggle="tooltip" data-placement="bottom" title="${invalid} invalid messages">
 						<fmt:formatNumber type="number" maxFractionDigits="1" value="${pInvalid}"/>%
 					</div>
+					<div class="progress-bar progress-bar-info" style="width: ${pSuppressed}%" data-toggle="tooltip" data-placement="bottom" title="${suppressed} suppressed messages">
+						<fmt:formatNumber type="number" maxFractionDigits="1" value="${pSuppressed}"/>%
+					</div>
 					<div class="progress-bar progress-bar-success" style="width: ${pDelivered}%" data-toggle="tooltip" data-placement="bottom"  title="${delivered} delivered messages">
 						<fmt:formatNumber type="number" maxFractionDigits="1" value="${pDelivered}"/>%
 					</div>
@@ -0,0 +1,64 @@
+package org.fenixedu.messaging.core.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link EmailValidator} reaches the same verdict as the {@link javax.mail.internet.InternetAddress} validation it
+ * replaced, for plain addresses and for unusual ones that are left to the latter.
+ */
+public class EmailValidatorTest {
+
+    private static final List<String> PLAIN = Arrays.asList("user@example.com", "first.last@example.com", "user@mail.example.com",
+            "user-name@example-domain.com", "u@e.co", "user0@example.com", "1@2.3");
+
+    private static final List<String> UNUSUAL = Arrays.asList("", "@", "user", "user@", "@example.com", "user@@example.com",
+            "user@example..com", "user@.example.com", "user@example.com.", "user@-example.com", "user@example-.com",
+            "user@ex-ample.com", "user@localhost", "user@127.0.0.1", "user@[127.0.0.1]", ".user@example.com",
+            "user.@example.com", "us..er@example.com", "us.er@example.com", "user+tag@example.com", "o'brien@example.com",
+            "a!#$%&*/=?^_`{|}~-@example.com", "\"quoted user\"@example.com", "\"unterminated@example.com",
+            "user name@example.com", "user@exa mple.com", "User Name <user@example.com>", "<user@example.com>",
+            "user@example.com (comment)", "user@example.com, other@example.com", "group: user@example.com;",
+            "user\\@name@example.com", "us\u00e9r@example.com", "user@ex\u00e4mple.com", "user@example_com", "user@EXAMPLE.COM",
+            "USER@example.com", "user\t@example.com", " user@example.com", "user@example.com ", "user@example.com\n",
+            "(comment)user@example.com", "user@ex(ample).com", "user@example.c", "user0@@example..com");
+
+    @Test
+    public void plainAddressesAreValid() {
+        for (String address : PLAIN) {
+            assertTrue(address, EmailValidator.isPlainAddress(address));
+            assertAgree(address);
+        }
+    }
+
+    @Test
+    public void unusualAddressesAgree() {
+        for (String address : UNUSUAL) {
+            assertAgree(address);
+        }
+    }
+
+    @Test
+    public void cachedVerdictsAgree() {
+        for (String address : UNUSUAL) {
+            EmailValidator.isValid(address);
+            assertAgree(address);
+        }
+    }
+
+    @Test
+    public void nullIsInvalid() {
+        assertFalse(EmailValidator.isValid(null));
+    }
+
+    private static void assertAgree(String address) {
+        assertEquals("Validators disagree on address: " + address, EmailValidator.validateInternetAddress(address),
+                EmailValidator.isValid(address));
+    }
+}
@@ -0,0 +1,56 @@
+package org.fenixedu.messaging.core.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.domain.UserProfile;
+import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
+import org.fenixedu.bennu.core.groups.Group;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import pt.ist.fenixframework.test.core.FenixFrameworkRunner;
+
+/**
+ * Checks that the snapshot of a group is kept across membership changes until it is invalidated, and that invalidating it
+ * leaves the snapshots of other groups alone.
+ */
+@RunWith(FenixFrameworkRunner.class)
+public class MembershipCacheTest {
+
+    @Test
+    public void invalidatedSnapshotsSeeMembershipChanges() {
+        User member = user("member");
+        PersistentGroup anyone = Group.anyone().toPersistentGroup(), single = Group.users(member).toPersistentGroup();
+        Set<User> before = members(anyone);
+        assertEquals(1, members(single).size());
+
+        User added = user("added");
+        assertFalse("Snapshots are kept until invalidated", members(anyone).contains(added));
+
+        MembershipCache.invalidate(Group.anyone());
+        assertFalse(MembershipCache.cachedSize(anyone).isPresent());
+        assertTrue("Other snapshots are kept", MembershipCache.cachedSize(single).isPresent());
+        Set<User> after = members(anyone);
+        assertTrue(after.contains(added));
+        assertEquals(before.size() + 1, after.size());
+
+        User later = user("later");
+        MembershipCache.invalidate(anyone);
+        assertTrue(members(anyone).contains(later));
+    }
+
+    private static Set<User> members(PersistentGroup group) {
+        return MembershipCache.members(group).collect(Collectors.toSet());
+    }
+
+    private static User user(String username) {
+        return new User(username, new UserProfile(username, username, username, username + "@example.com", Locale.ENGLISH));
+    }
+}
@@ -0,0 +1,116 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Leases reports between two nodes on a simulated clock. Leases last long enough for the heartbeat never to run on its own
+ * while a test runs, so it is run by hand.
+ */
+public class DeliveryLeasesTest {
+    private static final int LEASE_SECONDS = 600, SKEW_SECONDS = 5;
+    private static final long START = 1000000000000L;
+
+    private DeliveryLeases first, second;
+
+    @Before
+    public void startClock() {
+        DateTimeUtils.setCurrentMillisFixed(START);
+        first = new DeliveryLeases("first", LEASE_SECONDS, SKEW_SECONDS, 2);
+        second = new DeliveryLeases("second", LEASE_SECONDS, SKEW_SECONDS, 0);
+    }
+
+    @After
+    public void stopClock() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void expiredLeasesAreTakenOverPastTheSkew() {
+        LocalEmailMessageDispatchReport report = report();
+        assertEquals(Arrays.asList(report), first.acquire(Arrays.asList(report)));
+        assertTrue(second.acquire(Arrays.asList(report)).isEmpty());
+
+        at(LEASE_SECONDS + SKEW_SECONDS - 1);
+        assertTrue("The lease of another node is honored within the skew", second.acquire(Arrays.asList(report)).isEmpty());
+
+        at(LEASE_SECONDS + SKEW_SECONDS + 1);
+        assertEquals(Arrays.asList(report), second.acquire(Arrays.asList(report)));
+        first.renew();
+        assertTrue("The heartbeat drops the lease taken over", first.acquire(Arrays.asList(report)).isEmpty());
+    }
+
+    @Test
+    public void heartbeatRenewsHeldLeases() {
+        LocalEmailMessageDispatchReport report = report();
+        first.acquire(Arrays.asList(report));
+
+        at(LEASE_SECONDS / 2);
+        first.renew();
+        at(LEASE_SECONDS + SKEW_SECONDS + 1);
+        assertTrue(second.acquire(Arrays.asList(report)).isEmpty());
+
+        at(LEASE_SECONDS / 2 + LEASE_SECONDS + SKEW_SECONDS + 1);
+        assertEquals(Arrays.asList(report), second.acquire(Arrays.asList(report)));
+    }
+
+    @Test
+    public void deliveriesWithinANodeShareTheLease() {
+        LocalEmailMessageDispatchReport report = report();
+        assertEquals(Arrays.asList(report), first.acquire(Arrays.asList(report)));
+        assertEquals(Arrays.asList(report), first.acquire(Arrays.asList(report)));
+
+        first.release(report);
+        sync(first);
+        assertTrue("The lease is kept while a delivery holds it", second.acquire(Arrays.asList(report)).isEmpty());
+
+        first.release(report);
+        sync(first);
+        assertEquals(Arrays.asList(report), second.acquire(Arrays.asList(report)));
+    }
+
+    @Test
+    public void nodesLeaseUpToTheMaximumNumberOfReports() {
+        LocalEmailMessageDispatchReport one = report(), two = report(), three = report();
+        assertEquals(Arrays.asList(one, two), first.acquire(Arrays.asList(one, two, three)));
+        assertTrue(first.acquire(Arrays.asList(three)).isEmpty());
+        assertEquals("Reports already held are shared past the maximum", Arrays.asList(one),
+                first.acquire(Arrays.asList(one)));
+
+        first.release(one);
+        first.release(one);
+        sync(first);
+        assertEquals(Arrays.asList(three), first.acquire(Arrays.asList(three)));
+
+        assertEquals("No maximum is set for the second node", Arrays.asList(one),
+                second.acquire(Arrays.asList(one, two, three)));
+    }
+
+    private static void at(long seconds) {
+        DateTimeUtils.setCurrentMillisFixed(START + seconds * 1000L);
+    }
+
+    // Leases are released on the lease thread, which runs a later acquisition only once they are
+    private static void sync(DeliveryLeases leases) {
+        List<LocalEmailMessageDispatchReport> none = leases.acquire(Collections.emptyList());
+        assertTrue(none.isEmpty());
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static LocalEmailMessageDispatchReport report() {
+        return new LocalEmailMessageDispatchReport(Collections.emptyList(), 1, 0);
+    }
+}
@@ -0,0 +1,130 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
+/**
+ * Checks how {@link DeliveryRateLimiter} backs off and recovers, on a ticker moved by hand, and how it splits the rates between
+ * bulk and high priority messages and between senders. Buckets keep to the system clock, so the tests that wait on them only
+ * tell waiting for a whole permit apart from not waiting at all.
+ */
+public class DeliveryRateLimiterTest {
+    private static final double DELTA = 1e-9;
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    @Test
+    public void halvesAtMostOncePerSecondOnTransientErrors() throws AddressException {
+        DeliveryRateLimiter limiter = new DeliveryRateLimiter(100, 1000, 0, 0.2, ticker);
+
+        limiter.failed(rejected(550));
+        assertEquals("Permanent errors do not back off", 1, limiter.getFactor(), DELTA);
+
+        limiter.failed(rejected(451));
+        assertEquals(0.5, limiter.getFactor(), DELTA);
+        assertEquals(40, limiter.getMessageRate(false), DELTA);
+        assertEquals(10, limiter.getMessageRate(true), DELTA);
+        assertEquals(400, limiter.getRecipientRate(false), DELTA);
+        assertEquals(100, limiter.getRecipientRate(true), DELTA);
+
+        limiter.failed(rejected(451));
+        advance(999);
+        limiter.failed(new SendFailedException("Partially sent", rejected(421)));
+        assertEquals("Rejections within a second of a backoff are of messages sent before it", 0.5, limiter.getFactor(), DELTA);
+
+        advance(1);
+        limiter.failed(new SendFailedException("Partially sent", rejected(421)));
+        assertEquals(0.25, limiter.getFactor(), DELTA);
+
+        for (int i = 0; i < 10; i++) {
+            advance(1000);
+            limiter.failed(rejected(451));
+        }
+        assertEquals("Rates are never lowered below a twentieth", 0.05, limiter.getFactor(), DELTA);
+        assertEquals(4, limiter.getMessageRate(false), DELTA);
+    }
+
+    @Test
+    public void recoversTowardsTheConfiguredRates() throws AddressException {
+        DeliveryRateLimiter limiter = new DeliveryRateLimiter(100, 1000, 0, 0.2, ticker);
+        limiter.failed(rejected(451));
+
+        double factor = limiter.getFactor();
+        for (int i = 0; i < 100; i++) {
+            limiter.succeeded();
+            assertTrue(limiter.getFactor() > factor);
+            factor = limiter.getFactor();
+        }
+        assertTrue("Rates recover gradually", factor < 1);
+        for (int i = 0; i < 1000; i++) {
+            limiter.succeeded();
+        }
+        assertEquals(1, limiter.getFactor(), DELTA);
+        assertEquals(80, limiter.getMessageRate(false), DELTA);
+        assertEquals(20, limiter.getMessageRate(true), DELTA);
+    }
+
+    @Test
+    public void priorityMessagesDoNotWaitForBulkOnes() {
+        DeliveryRateLimiter limiter = new DeliveryRateLimiter(1, 0, 0, 0.5, ticker);
+        limiter.acquire("bulk", 0, false);
+
+        long start = System.nanoTime();
+        limiter.acquire("priority", 0, true);
+        assertTrue("High priority messages fall back to their reserved share", elapsedMillis(start) < 1000);
+    }
+
+    @Test
+    public void sharesOutsideTheUnitRangeReserveNothing() {
+        DeliveryRateLimiter limiter = new DeliveryRateLimiter(100, 1000, 0, 1, ticker);
+        assertEquals(100, limiter.getMessageRate(false), DELTA);
+        assertEquals(0, limiter.getMessageRate(true), DELTA);
+        assertEquals(1000, limiter.getRecipientRate(false), DELTA);
+        assertEquals(0, limiter.getRecipientRate(true), DELTA);
+    }
+
+    @Test
+    public void pacesEachSenderApart() {
+        DeliveryRateLimiter limiter = new DeliveryRateLimiter(0, 0, 1, 0, ticker);
+
+        long start = System.nanoTime();
+        limiter.acquire("first", 1, false);
+        limiter.acquire("second", 1, false);
+        assertTrue("Senders do not wait for each other", elapsedMillis(start) < 500);
+
+        limiter.acquire("first", 1, false);
+        assertTrue("A sender waits for its own bucket", elapsedMillis(start) >= 500);
+    }
+
+    private void advance(long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static MessagingException rejected(int code) throws AddressException {
+        return new SMTPAddressFailedException(new InternetAddress("rejected@example.com"), "RCPT TO:<rejected@example.com>",
+                code, code + " Rejected");
+    }
+}
@@ -0,0 +1,86 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.task.MessageTask;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatcherContextListener.LocalEmailMessageDispatcher;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.test.MessagingFixtures;
+import org.fenixedu.messaging.test.smtp.SmtpSink;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class EmailDeliveryEngineTest {
+    private static SmtpSink sink;
+    private static Sender sender;
+
+    @BeforeClass
+    public static void startSink() throws Exception {
+        sink = new SmtpSink(Integer.parseInt(EmailDispatchConfiguration.getConfiguration().mailSmtpPort()));
+        MessagingSystem.setMessageDispatcher(new LocalEmailMessageDispatcher());
+        sender = MessagingFixtures.sender("engine@localhost");
+        Authenticate.mock(MessagingFixtures.user("engine", "engine@localhost"));
+    }
+
+    @AfterClass
+    public static void stopSink() throws Exception {
+        EmailDeliveryEngine.shutdown();
+        MessageTask.shutdown();
+        sink.close();
+    }
+
+    /*XXX The email task and the dispatch daemon may deliver the same report at once, each from a snapshot of its pending
+     * handlers that the other may complete, and even fold, before it gets to them. */
+    @Test
+    public void concurrentDeliveriesSendEachHandlerOnce() throws Exception {
+        List<User> users = MessagingFixtures.users("concurrent", 500);
+        Message message = MessagingFixtures.send(sender, MessagingFixtures.group(users), "concurrent");
+        MessagingFixtures.runMessageTask();
+        LocalEmailMessageDispatchReport report = MessagingFixtures.report(message);
+        sink.latency(5);
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> deliveries = Collections.nCopies(2, (Runnable) () -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                EmailDeliveryEngine.getInstance().deliver(Collections.singleton(report));
+            }).stream().map(callers::submit).collect(Collectors.toList());
+            start.countDown();
+            for (Future<?> delivery : deliveries) {
+                delivery.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+            sink.latency(0);
+        }
+        MessagingFixtures.drain(30, TimeUnit.SECONDS);
+
+        List<String> received = sink.getDeliveries().stream().filter(delivery -> "concurrent".equals(delivery.getSubject()))
+                .flatMap(delivery -> delivery.getAddresses().stream()).collect(Collectors.toList());
+        assertEquals(500, received.size());
+        assertEquals(new HashSet<>(MessagingFixtures.addresses(users)), new HashSet<>(received));
+        assertEquals(500, (int) MessagingFixtures.read(report::getDeliveredCount));
+    }
+}
@@ -0,0 +1,91 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import pt.ist.fenixframework.test.core.FenixFrameworkRunner;
+
+import com.google.common.collect.Multiset;
+
+/**
+ * Checks that folding completed handlers into their report keeps its counters as they were when each handler added to them,
+ * and blacklists each failed address once.
+ */
+@RunWith(FenixFrameworkRunner.class)
+public class LocalEmailMessageDispatchReportTest {
+    private static final int MAX_ATTEMPTS = Math.max(1, EmailDispatchConfiguration.getConfiguration()
+            .mailSenderRetryMaxAttempts());
+
+    @Test
+    public void foldingKeepsTheCountersAndBlacklistsFailuresOnce() throws AddressException {
+        MimeMessageHandler delivered = handler("fold-a0", "fold-a1", "fold-a2");
+        MimeMessageHandler refused = handler("fold-b0", "fold-b1", "fold-b2");
+        MimeMessageHandler exhausted = handler("fold-c0", "fold-c1", "fold-c2");
+        exhausted.setAttempts(MAX_ATTEMPTS - 1);
+        LocalEmailMessageDispatchReport report =
+                new LocalEmailMessageDispatchReport(Arrays.asList(delivered, refused, exhausted), 9, 0);
+
+        delivered.record(internet("fold-a0", "fold-a1", "fold-a2"), null, null);
+        refused.record(internet("fold-b0"), internet("fold-b1", "fold-b2"), null);
+        assertCounts(report, 4, 2);
+
+        // Left over from an attempt of the fold transaction that was restarted
+        List<String> failed = new ArrayList<>(Arrays.asList("fold-b1@example.com", "stale@example.com"));
+        assertFalse(report.fold(failed));
+        assertEquals(new HashSet<>(Arrays.asList("fold-b1@example.com", "fold-b2@example.com")), new HashSet<>(failed));
+        assertEquals(2, failed.size());
+        assertEquals(new HashSet<>(Arrays.asList(exhausted)), report.getHandlerSet());
+        assertCounts(report, 4, 2);
+
+        exhausted.record(internet("fold-c0", "fold-c1"), null, internet("fold-c2"));
+        assertCounts(report, 6, 3);
+        assertTrue(report.finishDelivery());
+        assertTrue(report.getHandlerSet().isEmpty());
+        assertCounts(report, 6, 3);
+        assertTrue(report.finishDelivery());
+        assertCounts(report, 6, 3);
+
+        Multiset<String> failures = EmailBlacklist.getInstance().getFailures();
+        for (String address : Arrays.asList("fold-b1@example.com", "fold-b2@example.com", "fold-c2@example.com")) {
+            assertEquals(address, 1, failures.count(address));
+        }
+        assertEquals(0, failures.count("stale@example.com"));
+        assertEquals(0, failures.count("fold-a0@example.com"));
+    }
+
+    private static void assertCounts(LocalEmailMessageDispatchReport report, int delivered, int failed) {
+        assertEquals(delivered, report.getDeliveredCount());
+        assertEquals(failed, report.getFailedCount());
+    }
+
+    private static MimeMessageHandler handler(String... users) {
+        List<String> addresses = new ArrayList<>();
+        for (String user : users) {
+            addresses.add(user + "@example.com");
+        }
+        return new MimeMessageHandler(Locale.ENGLISH, addresses, null, null);
+    }
+
+    private static Address[] internet(String... users) throws AddressException {
+        Address[] addresses = new Address[users.length];
+        for (int i = 0; i < users.length; i++) {
+            addresses[i] = new InternetAddress(users[i] + "@example.com");
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,172 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import pt.ist.fenixframework.test.core.FenixFrameworkRunner;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+/**
+ * Checks that the handlers packed by {@link MimeMessageHandler.Batcher} are those the moving window it replaced created, for
+ * every mix of Tos, Ccs and Bccs around the recipient limit and across locales.
+ */
+@RunWith(FenixFrameworkRunner.class)
+public class MimeMessageHandlerBatcherTest {
+    private static final int MAX = EmailDispatchConfiguration.getConfiguration().mailSenderMaxRecipients();
+    private static final List<Integer> SIZES = Arrays.asList(0, 1, MAX / 2, MAX - 1, MAX, MAX + 1, 2 * MAX + 7);
+
+    @Test
+    public void packsLikeTheMovingWindow() {
+        for (int nTos : SIZES) {
+            for (int nCcs : SIZES) {
+                for (int nBccs : SIZES) {
+                    Set<String> tos = addresses("to", nTos), ccs = addresses("cc", nCcs), bccs = addresses("bcc", nBccs);
+                    Collection<MimeMessageHandler> handlers =
+                            MimeMessageHandler.create(byLocale(Locale.ENGLISH, tos), byLocale(Locale.ENGLISH, ccs),
+                                    byLocale(Locale.ENGLISH, bccs));
+                    List<List<Set<String>>> expected = movingWindow(Locale.ENGLISH, tos, ccs, bccs);
+                    String mix = nTos + " tos, " + nCcs + " ccs, " + nBccs + " bccs";
+
+                    assertEquals(mix, windows(expected), windows(envelopes(handlers)));
+                    if (!demotesCcs(nTos, nCcs, nBccs)) {
+                        assertEquals(mix, HashMultiset.create(expected), HashMultiset.create(envelopes(handlers)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packsEachLocaleApart() {
+        Locale pt = new Locale("pt"), es = new Locale("es");
+        Map<Locale, Set<String>> tos = new HashMap<>(), ccs = new HashMap<>(), bccs = new HashMap<>();
+        tos.put(Locale.ENGLISH, addresses("en-to", MAX - 1));
+        tos.put(pt, addresses("pt-to", MAX + 1));
+        ccs.put(pt, addresses("pt-cc", MAX / 2));
+        ccs.put(null, addresses("none-cc", 3));
+        bccs.put(Locale.ENGLISH, addresses("en-bcc", 2 * MAX + 7));
+        bccs.put(es, addresses("es-bcc", MAX));
+
+        Multiset<List<Object>> expected = HashMultiset.create();
+        Stream.of(tos, ccs, bccs).flatMap(m -> m.keySet().stream()).distinct()
+                .forEach(locale -> movingWindow(locale, tos.get(locale), ccs.get(locale), bccs.get(locale))
+                        .forEach(envelope -> expected.add(localized(locale, envelope))));
+        Multiset<List<Object>> actual = HashMultiset.create();
+        MimeMessageHandler.create(tos, ccs, bccs).forEach(
+                handler -> actual.add(localized(handler.getLocale(), envelope(handler))));
+
+        assertEquals(expected, actual);
+    }
+
+    /*XXX With no Tos left over for their window, the moving window sent Ccs that shared it with Bccs alone as Bccs. */
+    private static boolean demotesCcs(int nTos, int nCcs, int nBccs) {
+        return nTos % MAX == 0 && nCcs > 0 && nCcs < MAX && nBccs > 0;
+    }
+
+    private static Set<String> addresses(String prefix, int count) {
+        return IntStream.range(0, count).mapToObj(i -> prefix + i + "@example.com")
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private static Map<Locale, Set<String>> byLocale(Locale locale, Set<String> addresses) {
+        return addresses.isEmpty() ? Collections.emptyMap() : Collections.singletonMap(locale, addresses);
+    }
+
+    private static List<Object> localized(Locale locale, List<Set<String>> envelope) {
+        return Arrays.asList(locale, envelope);
+    }
+
+    private static List<List<Set<String>>> envelopes(Collection<MimeMessageHandler> handlers) {
+        return handlers.stream().map(MimeMessageHandlerBatcherTest::envelope).collect(Collectors.toList());
+    }
+
+    private static List<Set<String>> envelope(MimeMessageHandler handler) {
+        return Arrays.asList(MessagingSystem.Util.toEmailSet(handler.getToAddresses()),
+                MessagingSystem.Util.toEmailSet(handler.getCcAddresses()),
+                MessagingSystem.Util.toEmailSet(handler.getBccAddresses()));
+    }
+
+    private static Multiset<Set<String>> windows(List<List<Set<String>>> envelopes) {
+        return envelopes.stream().map(envelope -> envelope.stream().flatMap(Set::stream).collect(Collectors.toSet()))
+                .collect(Collectors.toCollection(HashMultiset::create));
+    }
+
+    // The moving window handlers were packed with before the batcher, each handler kept as its Tos, Ccs and Bccs
+    private static List<List<Set<String>>> movingWindow(Locale locale, Collection<String> tos, Collection<String> ccs,
+            Collection<String> bccs) {
+        List<List<Set<String>>> handlers = new ArrayList<>();
+        List<String> all =
+                Stream.of(tos, ccs, bccs).filter(Objects::nonNull).flatMap(Collection::stream).collect(Collectors.toList()),
+                partial;
+        List<List<String>> split = Lists.partition(all, MAX);
+
+        int nHandlers = split.size(), nRecipients = all.size(), nTos = tos != null ? tos.size() : 0, nCcs =
+                ccs != null ? ccs.size() : 0, nVisible = nTos + nCcs;
+        int ccStart, bccStart, mixedTos = nTos % MAX, mixedVisible = nVisible % MAX;
+        if (nTos == nRecipients && mixedTos != 0) {
+            ccStart = bccStart = nHandlers;
+        } else if (nVisible == nRecipients && mixedVisible != 0) {
+            ccStart = nTos / MAX;
+            bccStart = nHandlers;
+        } else {
+            ccStart = nTos / MAX;
+            bccStart = nVisible / MAX;
+        }
+
+        int i;
+        for (i = 0; i < ccStart; i++) {
+            handlers.add(envelope(split.get(i), null, null));
+        }
+        if (i < nHandlers && mixedTos != 0) {
+            partial = split.get(i);
+            if (nCcs == 0) {
+                handlers.add(envelope(partial.subList(0, mixedTos), null, partial.subList(mixedTos, partial.size())));
+            } else if (ccStart == bccStart) {
+                handlers.add(envelope(partial.subList(0, mixedTos), partial.subList(mixedTos, mixedVisible),
+                        partial.subList(mixedVisible, partial.size())));
+            } else {
+                handlers.add(envelope(partial.subList(0, mixedTos), partial.subList(mixedTos, partial.size()), null));
+            }
+            i++;
+        }
+        for (; i < bccStart; i++) {
+            handlers.add(envelope(null, split.get(i), null));
+        }
+        if (i < nHandlers && mixedVisible != 0 && ccStart != bccStart) {
+            partial = split.get(i);
+            handlers.add(envelope(null, partial.subList(0, mixedVisible), partial.subList(mixedVisible, partial.size())));
+            i++;
+        }
+        for (; i < nHandlers; i++) {
+            handlers.add(envelope(null, null, split.get(i)));
+        }
+        return handlers;
+    }
+
+    private static List<Set<String>> envelope(List<String> tos, List<String> ccs, List<String> bccs) {
+        return Stream.of(tos, ccs, bccs).map(addresses -> addresses != null ? addresses : Collections.<String> emptyList())
+                .map(addresses -> (Set<String>) new LinkedHashSet<>(addresses)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,143 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import pt.ist.fenixframework.test.core.FenixFrameworkRunner;
+
+/**
+ * Checks the retry policy of {@link MimeMessageHandler}: the delay doubles with each attempt up to a cap, is jittered down to no
+ * less than half of it, every address left is given up on at the last attempt, and attempts passed on to a retry handler are
+ * counted once.
+ */
+@RunWith(FenixFrameworkRunner.class)
+public class MimeMessageHandlerRetryTest {
+    private static final ConfigurationProperties CONF = EmailDispatchConfiguration.getConfiguration();
+    private static final int MAX_ATTEMPTS = Math.max(1, CONF.mailSenderRetryMaxAttempts());
+    private static final long DELAY = CONF.mailSenderRetryDelaySeconds() * 1000L;
+    private static final long MAX_DELAY = CONF.mailSenderRetryMaxDelaySeconds() * 1000L;
+
+    @Test
+    public void delayDoublesUpToTheCap() {
+        assertEquals(1000, MimeMessageHandler.retryDelay(1, 1000, 60000));
+        assertEquals(2000, MimeMessageHandler.retryDelay(2, 1000, 60000));
+        assertEquals(4000, MimeMessageHandler.retryDelay(3, 1000, 60000));
+        assertEquals(32000, MimeMessageHandler.retryDelay(6, 1000, 60000));
+        assertEquals(60000, MimeMessageHandler.retryDelay(7, 1000, 60000));
+        assertEquals(60000, MimeMessageHandler.retryDelay(40, 1000, 60000));
+        assertEquals(60000, MimeMessageHandler.retryDelay(Integer.MAX_VALUE, 1000, 60000));
+    }
+
+    @Test
+    public void jitterKeepsAtLeastHalfOfTheDelay() {
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            long jittered = MimeMessageHandler.jitter(1000);
+            assertTrue(String.valueOf(jittered), jittered >= 500 && jittered <= 1000);
+            seen.add(jittered);
+        }
+        assertTrue("Retries are spread over the jitter range", seen.size() > 1);
+        assertEquals(0, MimeMessageHandler.jitter(0));
+    }
+
+    @Test
+    public void postponesUntilTheLastAttempt() {
+        MimeMessageHandler handler = handler("postponed", 3);
+        for (int attempt = 1; attempt < MAX_ATTEMPTS; attempt++) {
+            DateTime before = new DateTime();
+            assertTrue(handler.postpone());
+            DateTime after = new DateTime();
+            long delay = MimeMessageHandler.retryDelay(attempt, DELAY, MAX_DELAY);
+            assertEquals(attempt, handler.getAttempts());
+            assertFalse(handler.isCompleted());
+            assertFalse(handler.getNotBefore().isBefore(before.plus(delay / 2)));
+            assertFalse(handler.getNotBefore().isAfter(after.plus(delay)));
+            assertFalse(handler.isDue(before));
+        }
+
+        assertFalse("The last attempt gives up on the handler", handler.postpone());
+        assertTrue(handler.isCompleted());
+        assertEquals(MAX_ATTEMPTS - 1, handler.getAttempts());
+        assertEquals(MAX_ATTEMPTS - 1, handler.getRetries());
+        assertEquals(3, handler.getFailedCount());
+        assertEquals(addresses("postponed", 3), handler.getFailedAddressStream().collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void resendsUnsentAddressesAfterADelay() throws AddressException {
+        MimeMessageHandler handler = handler("resent", 3);
+        LocalEmailMessageDispatchReport report = new LocalEmailMessageDispatchReport(Collections.singleton(handler), 3, 0);
+
+        DateTime before = new DateTime();
+        assertTrue(handler.record(internet("resent0@example.com"), null, internet("resent1@example.com", "resent2@example.com")));
+
+        assertTrue(handler.isCompleted());
+        assertEquals(1, handler.getDeliveredCount());
+        assertEquals(0, handler.getFailedCount());
+        MimeMessageHandler retry = report.getHandlerSet().stream().filter(h -> h != handler).findAny().get();
+        assertEquals(1, retry.getAttempts());
+        assertEquals(new HashSet<>(Arrays.asList("resent1@example.com", "resent2@example.com")),
+                MessagingSystem.Util.toEmailSet(retry.getToAddresses()));
+        assertFalse(retry.getNotBefore().isBefore(before.plus(MimeMessageHandler.retryDelay(1, DELAY, MAX_DELAY) / 2)));
+
+        assertFalse(retry.record(internet("resent1@example.com", "resent2@example.com"), null, null));
+        assertEquals("Attempts passed on are counted by the retry alone", 0, handler.getRetries());
+        assertEquals(1, retry.getRetries());
+        report.setQueue(null);
+    }
+
+    @Test
+    public void givesUpOnUnsentAddressesAtTheLastAttempt() throws AddressException {
+        MimeMessageHandler handler = handler("exhausted", 3);
+        handler.setAttempts(MAX_ATTEMPTS - 1);
+
+        assertFalse(handler.record(null, internet("exhausted0@example.com"),
+                internet("exhausted1@example.com", "exhausted2@example.com")));
+
+        assertTrue(handler.isCompleted());
+        assertNull(handler.getReport());
+        assertEquals(0, handler.getDeliveredCount());
+        assertEquals(3, handler.getFailedCount());
+        assertEquals(addresses("exhausted", 3), handler.getFailedAddressStream().collect(Collectors.toSet()));
+    }
+
+    private static MimeMessageHandler handler(String prefix, int count) {
+        return new MimeMessageHandler(Locale.ENGLISH, addresses(prefix, count), null, null);
+    }
+
+    private static Set<String> addresses(String prefix, int count) {
+        Set<String> addresses = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            addresses.add(prefix + i + "@example.com");
+        }
+        return addresses;
+    }
+
+    private static Address[] internet(String... addresses) throws AddressException {
+        Address[] internet = new Address[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            internet[i] = new InternetAddress(addresses[i]);
+        }
+        return internet;
+    }
+}
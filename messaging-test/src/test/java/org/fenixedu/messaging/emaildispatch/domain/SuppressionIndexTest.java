@@ -0,0 +1,74 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import pt.ist.fenixframework.test.core.FenixFrameworkRunner;
+
+/**
+ * Checks that the Bloom filter of {@link SuppressionIndex} never misses an address it holds, and that rebuilding the index keeps
+ * what this node registered, including while the blacklist was being read, counting each failure once.
+ */
+@RunWith(FenixFrameworkRunner.class)
+public class SuppressionIndexTest {
+    private static final int MAX_FAILURES = EmailDispatchConfiguration.getConfiguration().mailSenderSuppressionMaxFailures();
+
+    @Test
+    public void bloomHasNoFalseNegatives() {
+        for (int expected : new int[] { 0, 1, 100, 10000 }) {
+            SuppressionIndex.Bloom bloom = new SuppressionIndex.Bloom(expected);
+            List<String> added = addresses("held" + expected, Math.max(1, expected));
+            added.forEach(bloom::put);
+            for (String email : added) {
+                assertTrue(email, bloom.mightContain(email));
+            }
+            long falsePositives = addresses("other" + expected, 10000).stream().filter(bloom::mightContain).count();
+            assertTrue(expected + " addresses, " + falsePositives + " false positives", falsePositives < 300);
+        }
+    }
+
+    @Test
+    public void refreshKeepsRegistrationsOfThisNode() {
+        assertFalse(SuppressionIndex.isSuppressed("never@example.com"));
+        EmailBlacklist blacklist = EmailBlacklist.getInstance();
+
+        blacklist.addInvalidAddress("committed@example.com");
+        SuppressionIndex.invalid("committed@example.com");
+        for (int i = 0; i < MAX_FAILURES; i++) {
+            blacklist.addFailedAddress("counted@example.com");
+            SuppressionIndex.failed("counted@example.com");
+        }
+        // Committed after the blacklist the rebuild reads
+        SuppressionIndex.invalid("unread@example.com");
+
+        SuppressionIndex.refresh(0, () -> {
+            SuppressionIndex.invalid("racing@example.com");
+            for (int i = 0; i <= MAX_FAILURES; i++) {
+                SuppressionIndex.failed("racing-failed@example.com");
+            }
+        });
+
+        assertTrue(SuppressionIndex.isSuppressed("committed@example.com"));
+        assertTrue(SuppressionIndex.isSuppressed("unread@example.com"));
+        assertTrue("Registered between reading the blacklist and the swap", SuppressionIndex.isSuppressed("racing@example.com"));
+        assertTrue(SuppressionIndex.isSuppressed("racing-failed@example.com"));
+        assertFalse("Failures in the blacklist are not carried over again", SuppressionIndex.isSuppressed("counted@example.com"));
+        SuppressionIndex.failed("counted@example.com");
+        assertTrue(SuppressionIndex.isSuppressed("counted@example.com"));
+        assertFalse(SuppressionIndex.isSuppressed("never@example.com"));
+    }
+
+    private static List<String> addresses(String prefix, int count) {
+        List<String> addresses = new ArrayList<>(count);
+        IntStream.range(0, count).forEach(i -> addresses.add(prefix + "-" + i + "@example.com"));
+        return addresses;
+    }
+}
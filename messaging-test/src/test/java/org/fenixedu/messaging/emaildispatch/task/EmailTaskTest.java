@@ -0,0 +1,98 @@
+package org.fenixedu.messaging.emaildispatch.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.task.MessageTask;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatcherContextListener.LocalEmailMessageDispatcher;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDeliveryEngine;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.test.MessagingFixtures;
+import org.fenixedu.messaging.test.smtp.SmtpSink;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Sends messages through the message and email tasks to an embedded {@link SmtpSink}, checking what the relay received and
+ * what the reports counted.
+ */
+public class EmailTaskTest {
+    private static SmtpSink sink;
+    private static Sender sender;
+
+    @BeforeClass
+    public static void startSink() throws Exception {
+        sink = new SmtpSink(Integer.parseInt(EmailDispatchConfiguration.getConfiguration().mailSmtpPort()));
+        MessagingSystem.setMessageDispatcher(new LocalEmailMessageDispatcher());
+        sender = MessagingFixtures.sender("tasks@localhost");
+        Authenticate.mock(MessagingFixtures.user("tasks", "tasks@localhost"));
+    }
+
+    @AfterClass
+    public static void stopSink() throws Exception {
+        EmailDeliveryEngine.shutdown();
+        MessageTask.shutdown();
+        sink.close();
+    }
+
+    @Before
+    public void resetSink() {
+        sink.reset();
+    }
+
+    @Test
+    public void deliversEveryRecipientOnce() throws Exception {
+        List<User> users = MessagingFixtures.users("plain", 120);
+        Message message = MessagingFixtures.send(sender, MessagingFixtures.group(users), "plain");
+
+        MessagingFixtures.drain(30, TimeUnit.SECONDS);
+
+        List<String> received = received("plain");
+        assertEquals(120, received.size());
+        assertEquals(new HashSet<>(MessagingFixtures.addresses(users)), new HashSet<>(received));
+        LocalEmailMessageDispatchReport report = MessagingFixtures.report(message);
+        assertEquals(120, (int) MessagingFixtures.read(report::getDeliveredCount));
+        assertEquals(0, (int) MessagingFixtures.read(report::getFailedCount));
+        assertTrue(MessagingFixtures.read(report::isFinished));
+    }
+
+    @Test
+    public void retriesTransientRejectionsAndFailsPermanentOnes() throws Exception {
+        List<User> users = MessagingFixtures.users("rejected", 60);
+        List<String> addresses = MessagingFixtures.addresses(users);
+        String permanent = addresses.get(3), transientOnce = addresses.get(7);
+        sink.rejectPermanently(permanent).rejectTransiently(transientOnce, 1);
+        Message message = MessagingFixtures.send(sender, MessagingFixtures.group(users), "rejected");
+
+        MessagingFixtures.drain(60, TimeUnit.SECONDS);
+
+        List<String> received = received("rejected");
+        assertEquals("Every recipient but the rejected one is delivered once", 59, received.size());
+        assertEquals(59, new HashSet<>(received).size());
+        assertTrue(received.contains(transientOnce));
+        assertTrue(!received.contains(permanent));
+        assertEquals(2, sink.getRejectedRecipients());
+        LocalEmailMessageDispatchReport report = MessagingFixtures.report(message);
+        assertEquals(59, (int) MessagingFixtures.read(report::getDeliveredCount));
+        assertEquals(1, (int) MessagingFixtures.read(report::getFailedCount));
+        assertEquals(60, (int) MessagingFixtures.read(report::getTotalCount));
+    }
+
+    private static List<String> received(String subject) {
+        return sink.getDeliveries().stream().filter(delivery -> subject.equals(delivery.getSubject()))
+                .flatMap(delivery -> delivery.getAddresses().stream()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,127 @@
+package org.fenixedu.messaging.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.domain.UserProfile;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.task.MessageTask;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.task.EmailTask;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Users, groups and messages for tests and harnesses that go through dispatch and delivery, and the task entry points that
+ * drive them. Tasks run in a read-only transaction, as the scheduler runs them.
+ */
+public final class MessagingFixtures {
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    private MessagingFixtures() {
+    }
+
+    /**
+     * @return the given number of users, each with a distinct address of the form {@code prefixN@localhost}
+     */
+    @Atomic(mode = TxMode.WRITE)
+    public static List<User> users(String prefix, int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            users.add(user(prefix + i, prefix + i + "@localhost"));
+        }
+        return users;
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    public static User user(String username, String email) {
+        String unique = username + "-" + USERS.incrementAndGet();
+        return new User(unique, new UserProfile(username, username, username, email, Locale.ENGLISH));
+    }
+
+    public static Group group(List<User> users) {
+        return Group.users(users.toArray(new User[users.size()]));
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    public static Sender sender(String address) {
+        return Sender.from(address).as(address).members(Group.anyone()).recipients(Group.anyone()).build();
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    public static Message send(Sender sender, Group to, String subject) {
+        return Message.from(sender).subject(subject, Locale.ENGLISH).textBody("Body of " + subject, Locale.ENGLISH)
+                .preferredLocale(Locale.ENGLISH).to(to).send();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static void runMessageTask() throws Exception {
+        new MessageTask().runTask();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static void runEmailTask() throws Exception {
+        new EmailTask().runTask();
+    }
+
+    /**
+     * Runs the message and email tasks until no message is pending and no report is left unfinished.
+     *
+     * @throws IllegalStateException if that takes longer than the given time
+     */
+    public static void drain(long timeout, TimeUnit unit) throws Exception {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (true) {
+            runMessageTask();
+            runEmailTask();
+            if (pendingMessages().isEmpty() && unfinishedReports().isEmpty()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Messages were not delivered in time");
+            }
+            // Only handlers waiting for a retry may be left
+            Thread.sleep(200);
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static List<Message> pendingMessages() {
+        return MessagingSystem.getPendingMessagesInDispatchOrder();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static Set<LocalEmailMessageDispatchReport> unfinishedReports() {
+        return new HashSet<>(MessagingSystem.getInstance().getUnfinishedReportsSet());
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static LocalEmailMessageDispatchReport report(Message message) {
+        return (LocalEmailMessageDispatchReport) message.getDispatchReport();
+    }
+
+    /**
+     * @return the addresses of the given users
+     */
+    @Atomic(mode = TxMode.READ)
+    public static List<String> addresses(List<User> users) {
+        return users.stream().map(user -> user.getProfile().getEmail()).collect(Collectors.toList());
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public static <T> T read(Supplier<T> supplier) {
+        return supplier.get();
+    }
+}
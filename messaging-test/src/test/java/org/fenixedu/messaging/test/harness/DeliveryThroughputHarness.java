@@ -0,0 +1,120 @@
+package org.fenixedu.messaging.test.harness;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.core.task.MessageTask;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatcherContextListener.LocalEmailMessageDispatcher;
+import org.fenixedu.messaging.emaildispatch.delivery.EmailDeliveryEngine;
+import org.fenixedu.messaging.test.MessagingFixtures;
+import org.fenixedu.messaging.test.smtp.SmtpSink;
+
+/**
+ * Sends messages to synthetic users through the email dispatcher and an embedded {@link SmtpSink}, reporting the delivered
+ * messages and recipients per second and the latency from sending a message to its last recipient being delivered.
+ *
+ * Usage: {@code DeliveryThroughputHarness [users] [groups] [messages]}. The sink is configured with the system properties
+ * {@code sink.latency} (milliseconds per message), {@code sink.transient}, {@code sink.permanent} (fraction of recipients
+ * rejected) and {@code sink.data} (fraction of messages rejected). The relay port and retry delays are taken from
+ * configuration.properties.
+ *
+ * Dispatch and delivery are driven by running MessageTask and EmailTask, until no message is pending and no report is left
+ * unfinished. Latency therefore includes the time messages wait for the next run of the tasks, which are run back to back.
+ */
+public class DeliveryThroughputHarness {
+    private static final String SUBJECT_PREFIX = "harness-";
+
+    public static void main(String[] args) throws Exception {
+        int userCount = intArg(args, 0, 1000), groupCount = intArg(args, 1, 10), messageCount = intArg(args, 2, 100);
+        int port = Integer.parseInt(EmailDispatchConfiguration.getConfiguration().mailSmtpPort());
+
+        try (SmtpSink sink = new SmtpSink(port)) {
+            sink.latency(Long.getLong("sink.latency", 0)).transientRecipientFailures(doubleProperty("sink.transient"))
+                    .permanentRecipientFailures(doubleProperty("sink.permanent"))
+                    .transientMessageFailures(doubleProperty("sink.data"));
+            MessagingSystem.setMessageDispatcher(new LocalEmailMessageDispatcher());
+
+            List<Group> groups = createGroups(userCount, groupCount);
+            Sender sender = MessagingFixtures.sender("harness@localhost");
+            Authenticate.mock(MessagingFixtures.user("harness", "harness@localhost"));
+
+            Map<String, Long> sent = new ConcurrentHashMap<>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < messageCount; i++) {
+                String subject = SUBJECT_PREFIX + i;
+                MessagingFixtures.send(sender, groups.get(i % groups.size()), subject);
+                sent.put(subject, System.currentTimeMillis());
+            }
+            MessagingFixtures.drain(1, TimeUnit.HOURS);
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+            report(sink, sent, elapsed);
+        } finally {
+            EmailDeliveryEngine.shutdown();
+            MessageTask.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static void report(SmtpSink sink, Map<String, Long> sent, long elapsed) {
+        List<SmtpSink.Delivery> deliveries = sink.getDeliveries();
+        long recipients = deliveries.stream().mapToLong(SmtpSink.Delivery::getRecipients).sum();
+        Map<String, Long> lastDelivery = deliveries.stream().filter(d -> d.getSubject() != null)
+                .collect(Collectors.toMap(SmtpSink.Delivery::getSubject, SmtpSink.Delivery::getReceived, Math::max));
+        List<Long> latencies = new ArrayList<>();
+        sent.forEach((subject, time) -> {
+            Long delivered = lastDelivery.get(subject);
+            if (delivered != null) {
+                latencies.add(delivered - time);
+            }
+        });
+        Collections.sort(latencies);
+
+        System.out.printf("Elapsed: %d ms, SMTP sessions: %d%n", elapsed, sink.getSessions());
+        System.out.printf("Delivered %d SMTP messages (%.1f/s) to %d recipients (%.1f/s)%n", deliveries.size(),
+                deliveries.size() * 1000.0 / elapsed, recipients, recipients * 1000.0 / elapsed);
+        System.out.printf("Rejected %d recipients and %d messages%n", sink.getRejectedRecipients(), sink.getRejectedMessages());
+        System.out.printf("Send to last delivery latency (ms) of %d/%d messages: p50 %d, p90 %d, p99 %d, max %d%n",
+                latencies.size(), sent.size(), percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 100));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static List<Group> createGroups(int userCount, int groupCount) {
+        List<User> users = MessagingFixtures.users("user", userCount);
+        List<List<User>> members = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < userCount; i++) {
+            members.get(i % groupCount).add(users.get(i));
+        }
+        return members.stream().map(MessagingFixtures::group).collect(Collectors.toList());
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    private static double doubleProperty(String key) {
+        return Double.parseDouble(System.getProperty(key, "0"));
+    }
+}
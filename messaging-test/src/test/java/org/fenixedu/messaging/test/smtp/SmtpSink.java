@@ -0,0 +1,291 @@
+package org.fenixedu.messaging.test.smtp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal SMTP server that accepts and discards messages, standing in for a relay. It can add latency to each message and
+ * answer a fraction of the recipients or messages with transient (4xx) or permanent (5xx) errors, so that delivery can be
+ * exercised against a misbehaving relay. Given addresses can also be rejected deterministically, for tests to assert on.
+ */
+public class SmtpSink implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpSink.class);
+
+    public static final class Delivery {
+        private final String subject;
+        private final List<String> addresses;
+        private final long received;
+
+        private Delivery(String subject, List<String> addresses, long received) {
+            this.subject = subject;
+            this.addresses = addresses;
+            this.received = received;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public int getRecipients() {
+            return addresses.size();
+        }
+
+        /**
+         * @return the recipient addresses accepted for this message
+         */
+        public List<String> getAddresses() {
+            return addresses;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+    }
+
+    private final ServerSocket server;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "smtp-sink");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong rejectedRecipients = new AtomicLong();
+    private final AtomicLong rejectedMessages = new AtomicLong();
+    private final Set<String> permanentRejections = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> transientRejections = new ConcurrentHashMap<>();
+
+    private volatile long latencyMillis = 0;
+    private volatile double transientRecipientFailures = 0, permanentRecipientFailures = 0, transientMessageFailures = 0;
+
+    public SmtpSink(int port) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        connections.execute(this::accept);
+    }
+
+    /**
+     * Delays the reply to the end of each message.
+     */
+    public SmtpSink latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of recipients with "451 try again later".
+     */
+    public SmtpSink transientRecipientFailures(double rate) {
+        this.transientRecipientFailures = rate;
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of recipients with "550 no such user".
+     */
+    public SmtpSink permanentRecipientFailures(double rate) {
+        this.permanentRecipientFailures = rate;
+        return this;
+    }
+
+    /**
+     * Answers the given fraction of messages with "452 insufficient storage" once their data is sent.
+     */
+    public SmtpSink transientMessageFailures(double rate) {
+        this.transientMessageFailures = rate;
+        return this;
+    }
+
+    /**
+     * Answers the given address with "550 no such user" whenever it is a recipient.
+     */
+    public SmtpSink rejectPermanently(String address) {
+        permanentRejections.add(address);
+        return this;
+    }
+
+    /**
+     * Answers the given address with "451 try again later" the given number of times, and accepts it afterwards.
+     */
+    public SmtpSink rejectTransiently(String address, int times) {
+        transientRejections.put(address, new AtomicInteger(times));
+        return this;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public List<Delivery> getDeliveries() {
+        return new ArrayList<>(deliveries);
+    }
+
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    public long getRejectedRecipients() {
+        return rejectedRecipients.get();
+    }
+
+    public long getRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    public void reset() {
+        deliveries.clear();
+        sessions.set(0);
+        rejectedRecipients.set(0);
+        rejectedMessages.set(0);
+        permanentRejections.clear();
+        transientRejections.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.execute(() -> converse(socket));
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                logger.warn("Error accepting SMTP connection", e);
+            }
+        }
+    }
+
+    private void converse(Socket socket) {
+        sessions.incrementAndGet();
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.ISO_8859_1)) {
+            reply(out, "220 localhost SMTP sink");
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.ROOT);
+                switch (command) {
+                case "EHLO":
+                    reply(out, "250-localhost\r\n250-PIPELINING\r\n250 8BITMIME");
+                    break;
+                case "HELO":
+                    reply(out, "250 localhost");
+                    break;
+                case "MAIL":
+                    recipients.clear();
+                    reply(out, "250 OK");
+                    break;
+                case "RCPT":
+                    String address = address(line);
+                    AtomicInteger rejections = transientRejections.get(address);
+                    double roll = ThreadLocalRandom.current().nextDouble();
+                    if (permanentRejections.contains(address)) {
+                        rejectedRecipients.incrementAndGet();
+                        reply(out, "550 5.1.1 No such user");
+                    } else if (rejections != null && rejections.getAndDecrement() > 0) {
+                        rejectedRecipients.incrementAndGet();
+                        reply(out, "451 4.7.1 Try again later");
+                    } else if (roll < permanentRecipientFailures) {
+                        rejectedRecipients.incrementAndGet();
+                        reply(out, "550 5.1.1 No such user");
+                    } else if (roll < permanentRecipientFailures + transientRecipientFailures) {
+                        rejectedRecipients.incrementAndGet();
+                        reply(out, "451 4.7.1 Try again later");
+                    } else {
+                        recipients.add(address);
+                        reply(out, "250 OK");
+                    }
+                    break;
+                case "DATA":
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    String subject = readData(in);
+                    if (latencyMillis > 0) {
+                        Thread.sleep(latencyMillis);
+                    }
+                    if (ThreadLocalRandom.current().nextDouble() < transientMessageFailures) {
+                        rejectedMessages.incrementAndGet();
+                        reply(out, "452 4.3.1 Insufficient system storage");
+                    } else {
+                        deliveries.add(new Delivery(subject, new ArrayList<>(recipients), System.currentTimeMillis()));
+                        reply(out, "250 OK");
+                    }
+                    recipients.clear();
+                    break;
+                case "RSET":
+                    recipients.clear();
+                    reply(out, "250 OK");
+                    break;
+                case "NOOP":
+                    reply(out, "250 OK");
+                    break;
+                case "QUIT":
+                    reply(out, "221 Bye");
+                    return;
+                default:
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // connection dropped by the client
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The address of a "RCPT TO:<address>" command
+    private static String address(String line) {
+        int start = line.indexOf('<'), end = line.indexOf('>', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+    }
+
+    private static String readData(BufferedReader in) throws IOException {
+        String subject = null;
+        boolean headers = true;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+            if (headers) {
+                if (line.isEmpty()) {
+                    headers = false;
+                } else if (subject == null && line.regionMatches(true, 0, "Subject:", 0, 8)) {
+                    subject = line.substring(8).trim();
+                }
+            }
+        }
+        return subject;
+    }
+
+    private static void reply(Writer out, String reply) throws IOException {
+        out.write(reply);
+        out.write("\r\n");
+        out.flush();
+    }
+}